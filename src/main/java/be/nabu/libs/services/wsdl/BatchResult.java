@@ -0,0 +1,62 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * The outcome of one item in a batch, either an output or the exception that occurred.
+ */
+public class BatchResult {
+
+	private int index;
+	private ComplexContent input, output;
+	private ServiceException exception;
+
+	BatchResult(int index, ComplexContent input) {
+		this.index = index;
+		this.input = input;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public ComplexContent getInput() {
+		return input;
+	}
+
+	public ComplexContent getOutput() {
+		return output;
+	}
+	void setOutput(ComplexContent output) {
+		this.output = output;
+	}
+
+	public ServiceException getException() {
+		return exception;
+	}
+	void setException(ServiceException exception) {
+		this.exception = exception;
+	}
+
+	public boolean isSuccessful() {
+		return exception == null;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded in-memory pipe between one writer and one reader.
+ * The JDK piped streams wait on a monitor which pins virtual threads, this one uses a lock and conditions instead.
+ */
+class BlockingPipe {
+
+	private final byte [] buffer;
+	private int readPosition, size;
+	private boolean writeClosed, readClosed;
+	// set when the writer failed, the reader gets an exception instead of the end of the stream
+	private IOException failure;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+
+	private final InputStream input = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte [] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read < 0 ? -1 : single[0] & 0xff;
+		}
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				if (failure != null) {
+					throw new IOException("The writer failed", failure);
+				}
+				while (size == 0) {
+					if (readClosed) {
+						throw new IOException("Pipe closed");
+					}
+					if (failure != null) {
+						throw new IOException("The writer failed", failure);
+					}
+					if (writeClosed) {
+						return -1;
+					}
+					notEmpty.await();
+				}
+				int amount = Math.min(length, size);
+				int first = Math.min(amount, buffer.length - readPosition);
+				System.arraycopy(buffer, readPosition, bytes, offset, first);
+				if (first < amount) {
+					System.arraycopy(buffer, 0, bytes, offset + first, amount - first);
+				}
+				readPosition = (readPosition + amount) % buffer.length;
+				size -= amount;
+				notFull.signal();
+				return amount;
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		@Override
+		public int available() throws IOException {
+			lock.lock();
+			try {
+				return size;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				readClosed = true;
+				notFull.signalAll();
+				notEmpty.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	private final OutputStream output = new OutputStream() {
+		@Override
+		public void write(int value) throws IOException {
+			write(new byte[] { (byte) value }, 0, 1);
+		}
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			lock.lock();
+			try {
+				while (length > 0) {
+					if (readClosed) {
+						throw new IOException("Pipe closed by the reader");
+					}
+					if (writeClosed) {
+						throw new IOException("Pipe closed");
+					}
+					if (size == buffer.length) {
+						notFull.await();
+						continue;
+					}
+					int writePosition = (readPosition + size) % buffer.length;
+					int amount = Math.min(length, Math.min(buffer.length - size, buffer.length - writePosition));
+					System.arraycopy(bytes, offset, buffer, writePosition, amount);
+					size += amount;
+					offset += amount;
+					length -= amount;
+					notEmpty.signal();
+				}
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				writeClosed = true;
+				notEmpty.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	/**
+	 * Closes the write end with an error, the reader gets an exception rather than the end of the stream so incomplete content is never taken for complete
+	 */
+	void fail(IOException failure) {
+		lock.lock();
+		try {
+			if (this.failure == null) {
+				this.failure = failure;
+			}
+			writeClosed = true;
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	BlockingPipe(int size) {
+		this.buffer = new byte[size];
+	}
+
+	InputStream getInputStream() {
+		return input;
+	}
+
+	OutputStream getOutputStream() {
+		return output;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+class CountingInputStream extends FilterInputStream {
+
+	private long count;
+	
+	CountingInputStream(InputStream input) {
+		super(input);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = super.read();
+		if (read >= 0) {
+			count++;
+		}
+		return read;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		int read = super.read(bytes, offset, length);
+		if (read > 0) {
+			count += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long amount) throws IOException {
+		long skipped = super.skip(amount);
+		count += skipped;
+		return skipped;
+	}
+
+	// mark/reset would make the count ambiguous
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The hashing shared by the keys of the caches and pools, secrets are hashed so they never end up in a key as is
+ */
+public class DigestUtils {
+
+	private static final char [] HEX = "0123456789abcdef".toCharArray();
+	
+	private DigestUtils() {
+		// static only
+	}
+	
+	/**
+	 * The SHA-256 digest of the UTF-8 bytes of the value
+	 */
+	public static byte [] sha256(String value) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every jvm must support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public static String toHex(byte [] bytes) {
+		return toHex(bytes, bytes.length);
+	}
+	
+	/**
+	 * The lowercase hex representation of the first length bytes
+	 */
+	public static String toHex(byte [] bytes, int length) {
+		char [] chars = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >>> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,283 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.services.wsdl.api.WSCompiledExtension;
+import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.xml.XMLMarshaller;
+import be.nabu.libs.wsdl.api.BindingOperationMessageLayout;
+import be.nabu.libs.wsdl.api.MessagePart;
+
+/**
+ * The static parts of a request envelope (xml declaration, the envelope start tag and the header and body wrappers) never change for an operation.
+ * They are rendered once per charset, for each call only the header and body parts themselves are marshalled.
+ * This can only be used if nothing needs to alter the envelope structure itself, the service decides when that is the case.
+ * Compiled extensions that write their own header content are called right after the header is opened.
+ */
+public class EnvelopeTemplate {
+
+	private final WSDLService service;
+	private final MarshallingProfile profile;
+	private final List<WSCompiledExtension<Object>> extensions;
+	private final List<Object> extensionStates;
+	private final List<MessagePart> headerParts, bodyParts;
+	private final String envelopeStart, headerStart, headerEnd, bodyStart, envelopeEnd;
+	private final Map<Charset, Skeleton> rendered = new ConcurrentHashMap<Charset, Skeleton>();
+
+	@SuppressWarnings("unchecked")
+	EnvelopeTemplate(WSDLService service, MarshallingProfile profile) {
+		this.service = service;
+		this.profile = profile;
+		List<WSCompiledExtension<Object>> extensions = new ArrayList<WSCompiledExtension<Object>>();
+		List<Object> extensionStates = new ArrayList<Object>();
+		if (service.getExtensions() != null) {
+			for (WSExtension extension : service.getExtensions()) {
+				extensions.add((WSCompiledExtension<Object>) extension);
+				extensionStates.add(service.getExtensionState(extension));
+			}
+		}
+		this.extensions = extensions;
+		this.extensionStates = extensionStates;
+		BindingOperationMessageLayout layout = service.getOperation().getInputPartLayout();
+		this.headerParts = layout == null || layout.getHeader() == null || layout.getHeader().getParts() == null
+			? Collections.<MessagePart>emptyList()
+			: new ArrayList<MessagePart>(layout.getHeader().getParts());
+		this.bodyParts = layout == null || layout.getBody() == null || layout.getBody().getParts() == null
+			? Collections.<MessagePart>emptyList()
+			: new ArrayList<MessagePart>(layout.getBody().getParts());
+		String prefix = profile.getSoapPrefix();
+		this.envelopeStart = "<" + prefix + ":Envelope xmlns:" + prefix + "=\"" + profile.getEnvelope().getNamespace() + "\">";
+		this.headerStart = "<" + prefix + ":Header>";
+		this.headerEnd = "</" + prefix + ":Header>";
+		this.bodyStart = "<" + prefix + ":Body>";
+		this.envelopeEnd = "</" + prefix + ":Body></" + prefix + ":Envelope>";
+	}
+
+	/**
+	 * The static parts are written as prerendered bytes, the dynamic parts are marshalled straight into the output without intermediate copies.
+	 * The writer is flushed before any prerendered bytes are written so the order is kept.
+	 * The start of the envelope goes through the writer so a charset with a byte order mark (e.g. UTF-16) writes it exactly once, the prerendered bytes don't have one.
+	 */
+	public void write(ComplexContent input, OutputStream output, Charset charset) throws IOException {
+		write(input, output, charset, null);
+	}
+	
+	/**
+	 * The digest (if any) is updated with everything that is written except the headers of the extensions, they can hold content that is different for every call (e.g. timestamps or nonces).
+	 */
+	public void write(ComplexContent input, OutputStream output, Charset charset, MessageDigest digest) throws IOException {
+		DigestOutputStream digesting = digest == null ? null : new DigestOutputStream(output, digest);
+		if (digesting != null) {
+			output = digesting;
+		}
+		Skeleton skeleton = getSkeleton(charset);
+		Writer writer = new OutputStreamWriter(output, charset);
+		writer.write(skeleton.start);
+		boolean headerWritten = false;
+		if (!extensions.isEmpty()) {
+			writer.flush();
+			output.write(skeleton.headerStart);
+			headerWritten = true;
+			if (digesting != null) {
+				digesting.on(false);
+			}
+			for (int i = 0; i < extensions.size(); i++) {
+				extensions.get(i).writeHeader(extensionStates.get(i), service, input, writer);
+			}
+			writer.flush();
+			if (digesting != null) {
+				digesting.on(true);
+			}
+		}
+		for (MessagePart part : headerParts) {
+			Object value = input == null ? null : input.get("header/" + part.getElement().getName());
+			if (value != null) {
+				if (!headerWritten) {
+					writer.flush();
+					output.write(skeleton.headerStart);
+					headerWritten = true;
+				}
+				writePart(part, (ComplexContent) value, input, writer);
+			}
+		}
+		writer.flush();
+		if (headerWritten) {
+			output.write(skeleton.headerEnd);
+		}
+		output.write(skeleton.bodyStart);
+		for (MessagePart part : bodyParts) {
+			Object value = input == null ? null : input.get("body/" + part.getElement().getName());
+			if (value != null) {
+				writePart(part, (ComplexContent) value, input, writer);
+			}
+		}
+		writer.flush();
+		output.write(skeleton.envelopeEnd);
+	}
+
+	/**
+	 * Only values that are already complex content can be streamed directly, anything else has to go through the envelope to be converted
+	 */
+	public boolean canWrite(ComplexContent input) {
+		if (input != null) {
+			for (MessagePart part : headerParts) {
+				Object value = input.get("header/" + part.getElement().getName());
+				if (value != null && !(value instanceof ComplexContent)) {
+					return false;
+				}
+			}
+			for (MessagePart part : bodyParts) {
+				Object value = input.get("body/" + part.getElement().getName());
+				if (value != null && !(value instanceof ComplexContent)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void writePart(MessagePart part, ComplexContent value, ComplexContent input, Writer writer) throws IOException {
+		XMLMarshaller marshaller = profile.newMarshaller(part.getElement(), input);
+		DeclarationFilter filter = new DeclarationFilter(writer);
+		marshaller.marshal(filter, value);
+		filter.flush();
+	}
+
+	private Skeleton getSkeleton(Charset charset) {
+		Skeleton skeleton = rendered.get(charset);
+		if (skeleton == null) {
+			skeleton = new Skeleton(charset);
+			rendered.put(charset, skeleton);
+		}
+		return skeleton;
+	}
+
+	/**
+	 * The static parts for a charset, all but the start are encoded once without a byte order mark
+	 */
+	private class Skeleton {
+		private final String start;
+		private final byte [] headerStart, headerEnd, bodyStart, envelopeEnd;
+		
+		private Skeleton(Charset charset) {
+			start = "<?xml version=\"1.0\" encoding=\"" + charset.name() + "\"?>" + envelopeStart;
+			int bom = getByteOrderMarkLength(charset);
+			headerStart = encode(EnvelopeTemplate.this.headerStart, charset, bom);
+			headerEnd = encode(EnvelopeTemplate.this.headerEnd, charset, bom);
+			bodyStart = encode(EnvelopeTemplate.this.bodyStart, charset, bom);
+			envelopeEnd = encode(EnvelopeTemplate.this.envelopeEnd, charset, bom);
+		}
+	}
+	
+	private static byte [] encode(String value, Charset charset, int bom) {
+		byte [] bytes = value.getBytes(charset);
+		return bom == 0 ? bytes : Arrays.copyOfRange(bytes, bom, bytes.length);
+	}
+	
+	/**
+	 * Every separate encoding starts with the byte order mark (if the charset has one), so it is the difference between encoding one character twice and encoding two characters once
+	 */
+	static int getByteOrderMarkLength(Charset charset) {
+		return 2 * "<".getBytes(charset).length - "<<".getBytes(charset).length;
+	}
+
+	/**
+	 * The marshaller starts every part with an xml declaration, this drops it (and the whitespace after it) as the content streams through.
+	 * Everything else is passed on as is, flushing does not flush the parent so the output is not flushed for every part.
+	 */
+	static class DeclarationFilter extends Writer {
+		private static final String DECLARATION = "<?xml";
+		
+		private static final int START = 0, DECLARING = 1, DECLARED = 2, CONTENT = 3;
+		
+		private final Writer parent;
+		private int state = START;
+		// the characters at the start that might still be a declaration
+		private final StringBuilder pending = new StringBuilder();
+		private char previous;
+		
+		DeclarationFilter(Writer parent) {
+			this.parent = parent;
+		}
+
+		@Override
+		public void write(char[] characters, int offset, int length) throws IOException {
+			int end = offset + length;
+			for (int i = offset; i < end; i++) {
+				if (state == CONTENT) {
+					parent.write(characters, i, end - i);
+					return;
+				}
+				char character = characters[i];
+				switch (state) {
+					case START:
+						pending.append(character);
+						if (!DECLARATION.startsWith(pending.toString())) {
+							parent.write(pending.toString());
+							state = CONTENT;
+						}
+						else if (pending.length() == DECLARATION.length()) {
+							state = DECLARING;
+						}
+					break;
+					case DECLARING:
+						if (previous == '?' && character == '>') {
+							state = DECLARED;
+						}
+						previous = character;
+					break;
+					case DECLARED:
+						if (!Character.isWhitespace(character)) {
+							parent.write(character);
+							state = CONTENT;
+						}
+					break;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// content that was too short to tell is not a declaration
+			if (state == START && pending.length() > 0) {
+				parent.write(pending.toString());
+				state = CONTENT;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.services.wsdl.balancing.HedgingPolicy;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Sends a prepared request and, if it has not been answered within the delay of the policy, sends it again (to another endpoint if there is a pool).
+ * The first successful response wins and the other attempt is cancelled, if all the attempts fail the last failure is reported.
+ * Each attempt has its own exchange which it closes and records, they share the marshalled request.
+ * 
+ * The latency recorded in the policy is measured from the start of the primary attempt, whichever attempt wins.
+ * Only recording the winner would leave out exactly the slow responses that were hedged and drag the delay down further with every hedge.
+ */
+class HedgedInvocation {
+
+	private final WSDLServiceInstance instance;
+	private final HedgingPolicy policy;
+	private final Executor executor;
+	private final CompletableFuture<ComplexContent> result = new CompletableFuture<ComplexContent>();
+	private final List<WSDLExchange> attempts = new CopyOnWriteArrayList<WSDLExchange>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private long started;
+
+	HedgedInvocation(WSDLServiceInstance instance, HedgingPolicy policy, Executor executor) {
+		this.instance = instance;
+		this.policy = policy;
+		this.executor = executor;
+	}
+	
+	CompletableFuture<ComplexContent> start(final WSDLExchange primary) {
+		started = System.nanoTime();
+		attempt(primary, false);
+		// the scheduler only keeps the time, copying and sending the hedged request happens on the executor
+		ScheduledFuture<?> timer = WSDLExecutors.getScheduler().schedule(() -> executor.execute(() -> {
+			if (!result.isDone()) {
+				WSDLExchange hedge;
+				try {
+					hedge = primary.copy();
+				}
+				catch (Exception e) {
+					// we can not hedge but the primary is still running
+					return;
+				}
+				policy.hedged();
+				attempt(hedge, true);
+			}
+		}), policy.getEffectiveDelay(), TimeUnit.MILLISECONDS);
+		result.whenComplete((output, exception) -> {
+			timer.cancel(false);
+			for (WSDLExchange attempt : attempts) {
+				attempt.cancel();
+			}
+		});
+		return result;
+	}
+	
+	private void attempt(final WSDLExchange exchange, final boolean hedged) {
+		inFlight.incrementAndGet();
+		attempts.add(exchange);
+		// the other attempt may have won in the meantime
+		if (result.isDone()) {
+			attempts.remove(exchange);
+			exchange.cancelled = true;
+			exchange.close();
+			return;
+		}
+		CompletableFuture.supplyAsync(() -> WSDLServiceInstance.stage(() -> instance.call(exchange)), executor)
+			.whenComplete((output, exception) -> {
+				exchange.close();
+				exchange.record(WSDLServiceInstance.unwrap(exception));
+				if (exception == null) {
+					// mark the winner before completing, completing cancels all the attempts
+					attempts.remove(exchange);
+					if (result.complete(output)) {
+						policy.record(System.nanoTime() - started, hedged);
+					}
+				}
+				else if (inFlight.decrementAndGet() == 0) {
+					result.completeExceptionally(exception);
+				}
+			});
+	}
+}
@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.types.BaseTypeInstance;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.TypeInstance;
+import be.nabu.libs.types.binding.xml.XMLMarshaller;
+
+/**
+ * The resolved marshaller configuration for a service: the prefixes (predefined, soap and those of the extensions), the default namespace and the xsi settings.
+ * It is immutable and computed once per service, the marshaller itself is not thread safe so a new one is created for each call.
+ */
+public class MarshallingProfile {
+
+	private final ComplexType envelope;
+	private final boolean allowXsi, allowDefaultNamespace;
+	private final String targetNamespace, soapPrefix;
+	// the setPrefix calls in the order they have to be applied, later ones may override earlier ones
+	private final List<String[]> prefixes;
+
+	MarshallingProfile(WSDLService service, ComplexType envelope) {
+		this.envelope = envelope;
+		this.allowXsi = service.isAllowXsi();
+		this.allowDefaultNamespace = service.isAllowDefaultNamespace();
+		this.targetNamespace = service.getOperation().getDefinition().getTargetNamespace();
+
+		List<String[]> prefixes = new ArrayList<String[]>();
+		String soapPrefix = null;
+		if (service.getNamespaces() != null) {
+			for (PredefinedNamespace namespace : service.getNamespaces()) {
+				prefixes.add(new String[] { namespace.getPrefix(), namespace.getNamespace() });
+				if (envelope.getNamespace().equals(namespace.getNamespace())) {
+					soapPrefix = namespace.getPrefix();
+				}
+			}
+		}
+		if (soapPrefix == null) {
+			soapPrefix = "soap";
+			// fix the soap prefix, otherwise it will be autogenerated as "tns1"
+			// again: some parsers aren't too bright
+			prefixes.add(new String[] { envelope.getNamespace(), "soap" });
+		}
+		if (service.getExtensions() != null) {
+			for (WSExtension extension : service.getExtensions()) {
+				Map<String, String> preferredPrefixes = extension.getPreferredPrefixes();
+				if (preferredPrefixes != null) {
+					for (Map.Entry<String, String> prefix : preferredPrefixes.entrySet()) {
+						prefixes.add(new String[] { prefix.getKey(), prefix.getValue() });
+					}
+				}
+			}
+		}
+		this.prefixes = Collections.unmodifiableList(prefixes);
+		this.soapPrefix = soapPrefix;
+	}
+
+	public XMLMarshaller newMarshaller(ComplexContent input) {
+		return newMarshaller(new BaseTypeInstance(envelope), input);
+	}
+	
+	public XMLMarshaller newMarshaller(TypeInstance root, ComplexContent input) {
+		// use marshaller directly to access more features
+		XMLMarshaller marshaller = new XMLMarshaller(root);
+		marshaller.setAllowXSI(allowXsi);
+		marshaller.setAllowDefaultNamespace(allowDefaultNamespace);
+		marshaller.setAllowQualifiedOverride(true);
+		if (allowDefaultNamespace) {
+			marshaller.setDefaultNamespace(getDefaultNamespace(input));
+		}
+		for (String [] prefix : prefixes) {
+			marshaller.setPrefix(prefix[0], prefix[1]);
+		}
+		return marshaller;
+	}
+
+	public String getDefaultNamespace(ComplexContent input) {
+		// we set the default namespace to that of the actual input, not all parsers are too good with namespaces, having the main content
+		// with as few prefixes as possible is always a good thing
+		return input != null ? input.getType().getNamespace() : targetNamespace;
+	}
+
+	public ComplexType getEnvelope() {
+		return envelope;
+	}
+
+	public boolean isAllowXsi() {
+		return allowXsi;
+	}
+
+	public boolean isAllowDefaultNamespace() {
+		return allowDefaultNamespace;
+	}
+
+	public String getSoapPrefix() {
+		return soapPrefix;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Marshals the request on a separate thread into a bounded pipe that is read by the http client as it is sending.
+ * Only the pipe buffer is kept in memory, the content can not be reopened so authentication that requires resending the request must be preemptive.
+ */
+class StreamedInput implements Runnable {
+
+	private WSDLServiceInstance instance;
+	private ComplexContent input;
+	private Charset charset;
+	private BlockingPipe pipe;
+	private volatile Throwable failure;
+	private CountingOutputStream output;
+	private long [] timings;
+
+	StreamedInput(WSDLServiceInstance instance, ComplexContent input, Charset charset, int bufferSize, long [] timings) {
+		this.instance = instance;
+		this.timings = timings;
+		this.input = input;
+		this.charset = charset;
+		this.pipe = new BlockingPipe(bufferSize);
+		this.output = new CountingOutputStream(pipe.getOutputStream());
+	}
+
+	/**
+	 * If marshalling fails, the pipe is closed with the error so the http client aborts the chunked request instead of terminating it
+	 */
+	@Override
+	public void run() {
+		try {
+			instance.writeInput(input, output, charset, timings);
+			pipe.getOutputStream().close();
+		}
+		catch (Throwable e) {
+			failure = e;
+			pipe.fail(e instanceof IOException ? (IOException) e : new IOException("Could not marshal the request", e));
+			if (e instanceof Error) {
+				throw (Error) e;
+			}
+		}
+	}
+
+	/**
+	 * The amount of bytes marshalled so far
+	 */
+	public long getWritten() {
+		return output.getCount();
+	}
+
+	public ReadableContainer<ByteBuffer> getReadable() {
+		return IOUtils.wrap(pipe.getInputStream());
+	}
+
+	/**
+	 * Closing the read end also unblocks the writer if the request was aborted halfway
+	 */
+	public void close() {
+		try {
+			pipe.getInputStream().close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+	}
+
+	public void checkFailure() throws IOException {
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		else if (failure != null) {
+			throw new IOException("Could not marshal the request", failure);
+		}
+	}
+}
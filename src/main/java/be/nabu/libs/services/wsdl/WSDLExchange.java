@@ -0,0 +1,325 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.authentication.api.principals.BasicPrincipal;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.resources.URIUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.api.InvocationPhase;
+import be.nabu.libs.services.wsdl.api.WSInvocation;
+import be.nabu.libs.services.wsdl.balancing.Endpoint;
+import be.nabu.libs.services.wsdl.balancing.EndpointPool;
+import be.nabu.libs.services.wsdl.http.PooledHTTPClientProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.LimitedReadableContainer;
+
+/**
+ * The state of a single invocation as it moves through the phases: prepare, send and handle.
+ * If a metrics listener is configured, the exchange also keeps the measurements that are reported to it.
+ */
+class WSDLExchange implements WSInvocation {
+
+	private static final InvocationPhase [] PHASES = InvocationPhase.values();
+	
+	WSDLService service;
+	ComplexContent input;
+	String endpoint, transactionId, username;
+	URI uri;
+	// set when the endpoint is selected from a pool
+	EndpointPool endpoints;
+	Endpoint target;
+	List<Endpoint> attempted;
+	// the marshalled request, only kept if it may have to be sent more than once
+	byte [] request;
+	BasicPrincipal principal;
+	// the bearer token, resolved before anything is sent
+	String token;
+	// whether the authentication is bound to the connection rather than the request
+	boolean connectionBound;
+	LimitedReadableContainer<ByteBuffer> buffer;
+	StreamedInput streamed;
+	PooledHTTPClientProvider pool;
+	String poolKey;
+	volatile HTTPClient client;
+	// whether the client can be reused, this is only the case if the response was fully processed
+	boolean reusable;
+	// set when another attempt won the race, the client is closed to abort the exchange
+	volatile boolean cancelled;
+	// the timeout in ms and the deadline in nanoseconds, 0 if there is none
+	long timeout, deadline;
+	// when the call began (in ns), the deadline is relative to this
+	long begin;
+	// whether the timeout is derived from the latency, it is only known once the endpoint is
+	boolean adaptive;
+	volatile boolean timedOut;
+	// the duration (in ns) of the last http exchange, this is what the adaptive timeout is derived from
+	long latency;
+	private ScheduledFuture<?> watchdog;
+	HTTPResponse response;
+	// the fault code of an error response, only extracted if there is a retry policy
+	String faultCode;
+	
+	// only set when measuring, the durations per phase in nanoseconds
+	long [] timings;
+	long started, stopped, requestBytes = -1, responseBytes = -1;
+	int status;
+	boolean fault;
+	Throwable exception;
+
+	WSDLExchange(WSDLService service, ComplexContent input) {
+		this.service = service;
+		this.input = input;
+		begin = System.nanoTime();
+		Object timeout = input == null ? null : input.get("timeout");
+		if (timeout instanceof Number) {
+			setTimeout(((Number) timeout).longValue());
+		}
+		else if (service.getAdaptiveTimeoutPolicy() != null) {
+			adaptive = true;
+		}
+		else {
+			setTimeout(service.getTimeout());
+		}
+		if (service.getMetricsListener() != null) {
+			timings = new long[PHASES.length];
+			started = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Returns the start time for a phase or 0 if we are not measuring
+	 */
+	long start() {
+		return timings == null ? 0 : System.nanoTime();
+	}
+	
+	void stop(InvocationPhase phase, long started) {
+		if (timings != null) {
+			timings[phase.ordinal()] += System.nanoTime() - started;
+		}
+	}
+
+	void setTimeout(long timeout) {
+		this.timeout = timeout;
+		deadline = timeout > 0 ? begin + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+	}
+
+	/**
+	 * Release everything held by this exchange, this must be called exactly once when the invocation is done
+	 */
+	void close() {
+		if (watchdog != null) {
+			watchdog.cancel(false);
+		}
+		// calls that time out are measured at their timeout, cancelled attempts and calls that got no response are not measured
+		// only the last http exchange counts, time spent preparing, queueing or backing off before a retry says nothing about the endpoint
+		if (adaptive && endpoint != null && (timedOut || (status != 0 && !cancelled))) {
+			service.getAdaptiveTimeoutPolicy().record(service.getId(), endpoint, timedOut ? TimeUnit.MILLISECONDS.toNanos(timeout) : latency);
+		}
+		if (streamed != null) {
+			streamed.close();
+		}
+		release();
+	}
+	
+	void release() {
+		if (pool != null && client != null) {
+			pool.release(poolKey, client, reusable && !isAborted());
+			client = null;
+		}
+	}
+	
+	/**
+	 * Aborts the exchange from another thread, this only interrupts the http exchange if the client can be closed
+	 */
+	void cancel() {
+		cancelled = true;
+		abort();
+	}
+	
+	boolean isAborted() {
+		return cancelled || timedOut;
+	}
+	
+	/**
+	 * The time left in ms, Long.MAX_VALUE if there is no deadline
+	 */
+	long getRemaining() {
+		return deadline == 0 ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	}
+	
+	/**
+	 * Throws SOAP-7 if the deadline has passed
+	 */
+	void checkDeadline() throws ServiceException {
+		if (deadline != 0 && (timedOut || deadline - System.nanoTime() <= 0)) {
+			timedOut = true;
+			throw newTimeout(null);
+		}
+	}
+	
+	ServiceException newTimeout(Throwable cause) {
+		return new ServiceException("SOAP-7", "The call to " + endpoint + " did not complete within " + timeout + "ms", cause);
+	}
+	
+	/**
+	 * Aborts the exchange once the deadline passes, from that point on the exchange is only interrupted if the client can be closed
+	 */
+	void watch() {
+		if (deadline != 0 && watchdog == null) {
+			watchdog = WSDLExecutors.getScheduler().schedule(() -> {
+				timedOut = true;
+				abort();
+			}, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	private void abort() {
+		HTTPClient client = this.client;
+		if (client instanceof Closeable) {
+			try {
+				((Closeable) client).close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Drops the outcome of the previous attempt so the request can be sent again
+	 */
+	void reset() {
+		release();
+		response = null;
+		reusable = false;
+		status = 0;
+		latency = 0;
+		faultCode = null;
+	}
+	
+	/**
+	 * Points the exchange to another endpoint of the pool
+	 */
+	void retarget(Endpoint target) throws URISyntaxException {
+		this.target = target;
+		this.endpoint = target.getUrl();
+		this.uri = new URI(URIUtils.encodeURI(endpoint));
+		this.status = 0;
+	}
+	
+	/**
+	 * A new exchange for the same prepared request that is sent to another endpoint of the pool if possible, the request must have been kept
+	 */
+	WSDLExchange copy() throws URISyntaxException {
+		WSDLExchange copy = new WSDLExchange(service, input);
+		copy.transactionId = transactionId;
+		copy.username = username;
+		copy.principal = principal;
+		copy.token = token;
+		copy.connectionBound = connectionBound;
+		copy.request = request;
+		copy.requestBytes = requestBytes;
+		copy.endpoints = endpoints;
+		copy.begin = begin;
+		copy.adaptive = adaptive;
+		copy.timeout = timeout;
+		copy.deadline = deadline;
+		Endpoint next = endpoints == null || target == null ? null : endpoints.select(Arrays.asList(target));
+		if (next != null) {
+			copy.retarget(next);
+		}
+		else {
+			copy.target = target;
+			copy.endpoint = endpoint;
+			copy.uri = uri;
+		}
+		return copy;
+	}
+	
+	/**
+	 * Report the invocation to the listener, this must be called once after the exchange is closed. Cancelled attempts are not reported.
+	 */
+	void record(Throwable exception) {
+		if (timings != null && (!cancelled || timedOut)) {
+			stopped = System.nanoTime();
+			this.exception = exception;
+			if (streamed != null) {
+				requestBytes = streamed.getWritten();
+			}
+			service.getMetricsListener().record(this);
+		}
+	}
+
+	@Override
+	public WSDLService getService() {
+		return service;
+	}
+
+	@Override
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	@Override
+	public long getDuration(InvocationPhase phase) {
+		return timings == null ? 0 : timings[phase.ordinal()];
+	}
+
+	@Override
+	public long getTotalDuration() {
+		return stopped - started;
+	}
+
+	@Override
+	public long getRequestBytes() {
+		return requestBytes;
+	}
+
+	@Override
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public boolean isFault() {
+		return fault;
+	}
+
+	@Override
+	public Throwable getException() {
+		return exception;
+	}
+}
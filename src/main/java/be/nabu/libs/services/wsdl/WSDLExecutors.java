@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors used by the wsdl services.
+ * The library targets java 8 so virtual threads (java 21+) are looked up reflectively, if they are not available null is returned and the caller has to fall back to platform threads.
+ *
+ * Nothing on the execution path holds a monitor while blocking: lazy initialization uses locks and the streamed input uses a lock based pipe.
+ * A virtual thread that blocks on the http exchange therefore unmounts from its carrier thread instead of pinning it.
+ */
+public class WSDLExecutors {
+
+	private static class DefaultHolder {
+		private static final Executor EXECUTOR = Executors.newCachedThreadPool(newThreadFactory("wsdl"));
+	}
+
+	private static class SchedulerHolder {
+		private static final ScheduledExecutorService SCHEDULER = newScheduler();
+	}
+
+	private static class VirtualHolder {
+		private static final Executor EXECUTOR = newVirtualThreadExecutor();
+	}
+
+	private static Method isVirtual;
+
+	static {
+		try {
+			isVirtual = Thread.class.getMethod("isVirtual");
+		}
+		catch (Exception e) {
+			isVirtual = null;
+		}
+	}
+
+	public static Executor getDefaultExecutor() {
+		return DefaultHolder.EXECUTOR;
+	}
+
+	/**
+	 * Returns an executor that starts a new virtual thread per task or null if the JVM does not support them
+	 */
+	public static Executor getVirtualThreadExecutor() {
+		return VirtualHolder.EXECUTOR;
+	}
+
+	/**
+	 * A single threaded scheduler for timers, the scheduled tasks must hand off any actual work to another executor
+	 */
+	public static ScheduledExecutorService getScheduler() {
+		return SchedulerHolder.SCHEDULER;
+	}
+
+	/**
+	 * The executor for the writers of streamed requests. A writer blocks until the request is read so it must never queue behind the threads that read it:
+	 * it uses a virtual thread if possible and an unbounded pool otherwise, never the (possibly bounded) executor of the service.
+	 */
+	public static Executor getStreamingExecutor() {
+		Executor executor = getVirtualThreadExecutor();
+		return executor == null ? getDefaultExecutor() : executor;
+	}
+
+	public static boolean isVirtualThreadSupported() {
+		return getVirtualThreadExecutor() != null;
+	}
+
+	public static boolean isVirtual(Thread thread) {
+		try {
+			return isVirtual != null && (Boolean) isVirtual.invoke(thread);
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	public static ExecutorService newBoundedExecutor(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory("wsdl-bounded"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static ScheduledExecutorService newScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, newThreadFactory("wsdl-scheduler"));
+		// most timers are cancelled, don't keep them around until they expire
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	private static Executor newVirtualThreadExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
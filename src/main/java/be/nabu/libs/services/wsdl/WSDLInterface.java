@@ -18,6 +18,8 @@
 package be.nabu.libs.services.wsdl;
 
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import be.nabu.libs.services.api.DefinedServiceInterface;
 import be.nabu.libs.services.api.ServiceInterface;
@@ -41,7 +43,9 @@ public class WSDLInterface implements DefinedServiceInterface {
 	private BindingOperation operation;
 	private SimpleTypeWrapper wrapper = SimpleTypeWrapperFactory.getInstance().getWrapper();
 	private boolean backwardsCompatible;
-	private Structure input, output;
+	// the definitions are built lazily, a lock is used instead of a monitor so virtual threads are never pinned to their carrier
+	private volatile Structure input, output;
+	private final Lock lock = new ReentrantLock();
 
 	public WSDLInterface(String id, BindingOperation operation) {
 		this.id = id;
@@ -51,12 +55,15 @@ public class WSDLInterface implements DefinedServiceInterface {
 	@Override
 	public ComplexType getInputDefinition() {
 		if (input == null) {
-			synchronized(this) {
+			lock.lock();
+			try {
 				if (input == null) {
 					Structure input = new Structure();
 					input.setName("input");
 					input.add(new SimpleElementImpl<String>("endpoint", wrapper.wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					input.add(new SimpleElementImpl<String>("transactionId", wrapper.wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					// the timeout of the call in ms, it overrides the timeout of the service
+					input.add(new SimpleElementImpl<Long>("timeout", wrapper.wrap(Long.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					Structure authentication = new Structure();
 					authentication.add(new SimpleElementImpl<String>("username", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), authentication, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					authentication.add(new SimpleElementImpl<String>("password", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), authentication, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
@@ -95,6 +102,9 @@ public class WSDLInterface implements DefinedServiceInterface {
 					this.input = input;
 				}
 			}
+			finally {
+				lock.unlock();
+			}
 		}
 		return input;
 	}
@@ -102,7 +112,8 @@ public class WSDLInterface implements DefinedServiceInterface {
 	@Override
 	public ComplexType getOutputDefinition() {
 		if (output == null) {
-			synchronized(this) {
+			lock.lock();
+			try {
 				if (output == null) {
 					Structure output = new Structure();
 					output.setName("output");
@@ -155,6 +166,9 @@ public class WSDLInterface implements DefinedServiceInterface {
 					this.output = output;
 				}
 			}
+			finally {
+				lock.unlock();
+			}
 		}
 		return output;
 	}
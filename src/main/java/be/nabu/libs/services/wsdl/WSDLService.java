@@ -21,18 +21,53 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 import be.nabu.libs.artifacts.ExternalDependencyImpl;
 import be.nabu.libs.artifacts.api.ExternalDependency;
 import be.nabu.libs.artifacts.api.ExternalDependencyArtifact;
 import be.nabu.libs.http.api.WebAuthorizationType;
 import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.services.wsdl.api.WSCompiledExtension;
 import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.services.wsdl.api.WSMetricsListener;
+import be.nabu.libs.services.wsdl.api.WSTokenProvider;
+import be.nabu.libs.services.wsdl.balancing.EndpointPool;
+import be.nabu.libs.services.wsdl.balancing.HedgingPolicy;
+import be.nabu.libs.services.wsdl.cache.RequestCoalescer;
+import be.nabu.libs.services.wsdl.cache.ResponseCache;
+import be.nabu.libs.services.wsdl.resilience.CircuitBreakerPolicy;
+import be.nabu.libs.services.wsdl.resilience.ConcurrencyLimitPolicy;
+import be.nabu.libs.services.wsdl.resilience.AdaptiveTimeoutPolicy;
+import be.nabu.libs.services.wsdl.resilience.RateLimiter;
+import be.nabu.libs.services.wsdl.resilience.RetryPolicy;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.TypeBaseUtils;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.properties.AttributeQualifiedDefaultProperty;
+import be.nabu.libs.types.properties.ElementQualifiedDefaultProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
 import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.api.BindingOperationMessage;
+import be.nabu.libs.wsdl.api.MessagePart;
 
 public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 
@@ -50,6 +85,42 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 	private WSDLInterface iface;
 	private WebAuthorizationType preemptiveAuthorizationType;
 	private List<WSExtension> extensions;
+	// the envelopes only depend on the operation, the extensions and the namespaces, so they are compiled once and reused for every call
+	private volatile ComplexType requestEnvelope, responseEnvelope;
+	private volatile MarshallingProfile marshallingProfile;
+	private volatile EnvelopeTemplate envelopeTemplate;
+	// the state of the compiled extensions, by identity
+	private volatile Map<WSExtension, Object> extensionStates;
+	// guards the lazily compiled state, a lock instead of a monitor does not pin virtual threads
+	private final Lock lock = new ReentrantLock();
+	// when possible, only the parts are marshalled and the envelope around them is prerendered
+	private boolean prerenderEnvelope = true;
+	// stream the request with chunked encoding instead of buffering it to calculate the content length
+	private boolean streamRequests;
+	private int streamBufferSize = 65536;
+	private Executor executor;
+	private boolean useVirtualThreads;
+	private int maxPlatformThreads = 200;
+	private volatile Executor fallbackExecutor;
+	// windows on the response, the paths are relative to the soap envelope, for example "Body/SearchResponse/results"
+	private List<Window> windows;
+	private ResponseCache responseCache;
+	private RequestCoalescer requestCoalescer;
+	private WSMetricsListener metricsListener;
+	private WSTokenProvider tokenProvider;
+	private EndpointPool endpointPool;
+	private HedgingPolicy hedgingPolicy;
+	private CircuitBreakerPolicy circuitBreakerPolicy;
+	private RetryPolicy retryPolicy;
+	private ConcurrencyLimitPolicy concurrencyLimitPolicy;
+	private RateLimiter rateLimiter;
+	// in ms, 0 means the call is only bounded by the timeouts of the connection
+	private long timeout;
+	private AdaptiveTimeoutPolicy adaptiveTimeoutPolicy;
+	// whether the ports in the wsdl are used as a pool when no endpoint is configured, otherwise the first port is used
+	private boolean poolPorts;
+	// the pool built from the ports in the wsdl, only used if no endpoint is configured
+	private volatile EndpointPool definitionPool;
 	
 	public WSDLService(String id, BindingOperation operation, HTTPClientProvider httpClientProvider, Charset charset) {
 		this.id = id;
@@ -68,11 +139,75 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 		return operation;
 	}
 	
+	public String getOperationName() {
+		return operation.getName();
+	}
+	
+	public String getSoapAction() {
+		return operation.getSoapAction();
+	}
+	
 	@Override
 	public WSDLServiceInstance newInstance() {
 		return new WSDLServiceInstance(this);
 	}
 
+	/**
+	 * Executes the operation for each input with at most "parallelism" calls in flight at any time.
+	 * All calls share the compiled state of this service, the results are returned in the order of the inputs and failures are captured per item.
+	 */
+	public List<BatchResult> executeBatch(ExecutionContext executionContext, Iterable<ComplexContent> inputs, int parallelism) throws InterruptedException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("The parallelism must be at least 1");
+		}
+		final WSDLServiceInstance instance = newInstance();
+		final Semaphore permits = new Semaphore(parallelism);
+		final ExecutionContext context = executionContext;
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		Executor executor = getExecutor();
+		int index = 0;
+		try {
+			for (ComplexContent input : inputs) {
+				final BatchResult result = new BatchResult(index++, input);
+				results.add(result);
+				permits.acquire();
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								result.setOutput(instance.execute(context, result.getInput()));
+							}
+							catch (ServiceException e) {
+								result.setException(e);
+							}
+							catch (Exception e) {
+								result.setException(new ServiceException(e));
+							}
+							finally {
+								permits.release();
+							}
+						}
+					});
+				}
+				catch (RuntimeException e) {
+					permits.release();
+					result.setException(new ServiceException(e));
+				}
+			}
+		}
+		finally {
+			// once we have all the permits, every item is done, this also guarantees visibility of the results
+			permits.acquireUninterruptibly(parallelism);
+		}
+		return results;
+	}
+	
+	public List<BatchResult> executeBatch(ExecutionContext executionContext, Stream<ComplexContent> inputs, int parallelism) throws InterruptedException {
+		Iterator<ComplexContent> iterator = inputs.iterator();
+		return executeBatch(executionContext, () -> iterator, parallelism);
+	}
+
 	@Override
 	public Set<String> getReferences() {
 		return new HashSet<String>();
@@ -97,6 +232,7 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 
 	public void setNamespaces(List<PredefinedNamespace> namespaces) {
 		this.namespaces = namespaces;
+		invalidate();
 	}
 
 	public String getUsername() {
@@ -128,6 +264,7 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 	}
 	public void setAllowXsi(boolean allowXsi) {
 		this.allowXsi = allowXsi;
+		invalidate();
 	}
 
 	public boolean isAllowDefaultNamespace() {
@@ -135,6 +272,7 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 	}
 	public void setAllowDefaultNamespace(boolean allowDefaultNamespace) {
 		this.allowDefaultNamespace = allowDefaultNamespace;
+		invalidate();
 	}
 
 	public boolean isUseFullPathTarget() {
@@ -156,6 +294,263 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 	}
 	public void setBackwardsCompatible(boolean backwardsCompatible) {
 		this.backwardsCompatible = backwardsCompatible;
+		invalidate();
+	}
+
+	public boolean isPrerenderEnvelope() {
+		return prerenderEnvelope;
+	}
+	public void setPrerenderEnvelope(boolean prerenderEnvelope) {
+		this.prerenderEnvelope = prerenderEnvelope;
+	}
+
+	public boolean isStreamRequests() {
+		return streamRequests;
+	}
+	public void setStreamRequests(boolean streamRequests) {
+		this.streamRequests = streamRequests;
+	}
+
+	public int getStreamBufferSize() {
+		return streamBufferSize;
+	}
+	public void setStreamBufferSize(int streamBufferSize) {
+		this.streamBufferSize = streamBufferSize;
+	}
+
+	/**
+	 * The executor used for asynchronous execution and for streaming requests.
+	 * If none is set explicitly and virtual threads are enabled, each task runs on its own virtual thread. On JVMs that do not support them this falls back to a bounded pool of platform threads.
+	 */
+	public Executor getExecutor() {
+		return getExecutor(WSDLExecutors.getVirtualThreadExecutor());
+	}
+	
+	/**
+	 * The virtual thread executor is null if the JVM does not support them, passing in null explicitly gives the fallback on any JVM
+	 */
+	Executor getExecutor(Executor virtualExecutor) {
+		if (executor != null) {
+			return executor;
+		}
+		else if (useVirtualThreads) {
+			if (virtualExecutor != null) {
+				return virtualExecutor;
+			}
+			if (fallbackExecutor == null) {
+				lock.lock();
+				try {
+					if (fallbackExecutor == null) {
+						fallbackExecutor = WSDLExecutors.newBoundedExecutor(maxPlatformThreads);
+					}
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+			return fallbackExecutor;
+		}
+		return WSDLExecutors.getDefaultExecutor();
+	}
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	public boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	public int getMaxPlatformThreads() {
+		return maxPlatformThreads;
+	}
+	/**
+	 * The size of the platform thread pool that is used when virtual threads are requested but not available
+	 */
+	public void setMaxPlatformThreads(int maxPlatformThreads) {
+		this.maxPlatformThreads = maxPlatformThreads;
+	}
+	
+	/**
+	 * Windowed lists are not fully loaded in memory but read in batches as they are accessed.
+	 * Note that the paths are relative to the envelope, so an output field "body/SearchResponse/results" maps to the window path "Body/SearchResponse/results".
+	 */
+	public List<Window> getWindows() {
+		return windows;
+	}
+	/**
+	 * Windowed content is parsed lazily when it is accessed. With a pooled http client provider the connection is reused once the call returns, so the response is then spilled to a temporary file first.
+	 */
+	public void setWindows(List<Window> windows) {
+		this.windows = windows;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	/**
+	 * The cache is only used if this operation is marked as cacheable in it
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public RequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+	/**
+	 * Identical concurrent requests are only sent once, only set this on read-only operations
+	 */
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	public WSMetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+	/**
+	 * When set, every invocation is timed per phase and reported to the listener
+	 */
+	public void setMetricsListener(WSMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	public WSTokenProvider getTokenProvider() {
+		return tokenProvider;
+	}
+	/**
+	 * Used for preemptive BEARER authorization to exchange the credentials for a token.
+	 * The token is resolved before the request is sent, if that fails the call fails with SOAP-8 and the endpoint is not held responsible.
+	 */
+	public void setTokenProvider(WSTokenProvider tokenProvider) {
+		this.tokenProvider = tokenProvider;
+	}
+
+	public EndpointPool getEndpointPool() {
+		return endpointPool;
+	}
+	/**
+	 * Requests without an explicit endpoint in the input are spread over the endpoints in the pool.
+	 */
+	public void setEndpointPool(EndpointPool endpointPool) {
+		this.endpointPool = endpointPool;
+	}
+	
+	public boolean isPoolPorts() {
+		return poolPorts;
+	}
+	/**
+	 * If neither a pool nor an endpoint is configured, requests are spread over the ports in the wsdl that bind the operation.
+	 * By default only the first port in the wsdl is used.
+	 */
+	public void setPoolPorts(boolean poolPorts) {
+		this.poolPorts = poolPorts;
+	}
+	
+	public HedgingPolicy getHedgingPolicy() {
+		return hedgingPolicy;
+	}
+	/**
+	 * Slow requests are sent a second time (to another endpoint if possible), only set this on read-only operations
+	 */
+	public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+	}
+	
+	public CircuitBreakerPolicy getCircuitBreakerPolicy() {
+		return circuitBreakerPolicy;
+	}
+	/**
+	 * Calls to an endpoint are rejected with SOAP-4 while its circuit is open, the policy can be shared by services that call the same endpoints
+	 */
+	public void setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+		this.circuitBreakerPolicy = circuitBreakerPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	/**
+	 * Streamed requests can only be sent once and are never retried
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	public ConcurrencyLimitPolicy getConcurrencyLimitPolicy() {
+		return concurrencyLimitPolicy;
+	}
+	/**
+	 * Calls over the (adaptive) limit of an endpoint are queued and eventually rejected with SOAP-5
+	 */
+	public void setConcurrencyLimitPolicy(ConcurrencyLimitPolicy concurrencyLimitPolicy) {
+		this.concurrencyLimitPolicy = concurrencyLimitPolicy;
+	}
+	
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	/**
+	 * Calls that exceed the rate are delayed or rejected with SOAP-6, set the same limiter on all the services of a wsdl to share the rate between the operations
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	/**
+	 * The default timeout (in ms) of a call, it can be overridden per call with the timeout in the input.
+	 * When it is exceeded, the call fails with SOAP-7 and the connection is closed and discarded.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	public AdaptiveTimeoutPolicy getAdaptiveTimeoutPolicy() {
+		return adaptiveTimeoutPolicy;
+	}
+	/**
+	 * Derives the timeout from the recent latency of the operation on the endpoint, this replaces the default timeout but not the timeout in the input
+	 */
+	public void setAdaptiveTimeoutPolicy(AdaptiveTimeoutPolicy adaptiveTimeoutPolicy) {
+		this.adaptiveTimeoutPolicy = adaptiveTimeoutPolicy;
+	}
+	
+	/**
+	 * The timeout (in ms) the next call to the endpoint gets unless the input overrides it, 0 if there is none
+	 */
+	public long getEffectiveTimeout(String endpoint) {
+		return adaptiveTimeoutPolicy == null ? timeout : adaptiveTimeoutPolicy.getTimeout(getId(), endpoint);
+	}
+	
+	/**
+	 * The pool to use when no endpoint is given in the input, null if a fixed endpoint is configured
+	 */
+	EndpointPool resolveEndpointPool() {
+		if (endpointPool != null) {
+			return endpointPool;
+		}
+		else if (endpoint != null || !poolPorts) {
+			return null;
+		}
+		EndpointPool pool = definitionPool;
+		if (pool == null) {
+			lock.lock();
+			try {
+				if (definitionPool == null) {
+					definitionPool = EndpointPool.fromOperation(operation);
+				}
+				pool = definitionPool;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return pool;
 	}
 
 	public WebAuthorizationType getPreemptiveAuthorizationType() {
@@ -182,6 +577,215 @@ public class WSDLService implements DefinedService, ExternalDependencyArtifact {
 
 	public void setExtensions(List<WSExtension> extensions) {
 		this.extensions = extensions;
+		invalidate();
+	}
+	
+	/**
+	 * Drops all compiled state (envelopes, marshalling profile and extension state), it will be rebuilt on the next call.
+	 * This is done automatically by the setters that influence it but must be called explicitly if you modify them in place.
+	 */
+	public void invalidate() {
+		lock.lock();
+		try {
+			requestEnvelope = null;
+			responseEnvelope = null;
+			marshallingProfile = null;
+			envelopeTemplate = null;
+			extensionStates = null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public ComplexType getRequestEnvelope() {
+		ComplexType envelope = requestEnvelope;
+		if (envelope == null) {
+			lock.lock();
+			try {
+				if (requestEnvelope == null) {
+					requestEnvelope = buildEnvelope(true);
+				}
+				envelope = requestEnvelope;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return envelope;
+	}
+	
+	public ComplexType getResponseEnvelope() {
+		ComplexType envelope = responseEnvelope;
+		if (envelope == null) {
+			lock.lock();
+			try {
+				if (responseEnvelope == null) {
+					responseEnvelope = buildEnvelope(false);
+				}
+				envelope = responseEnvelope;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return envelope;
+	}
+	
+	public MarshallingProfile getMarshallingProfile() {
+		MarshallingProfile profile = marshallingProfile;
+		if (profile == null) {
+			lock.lock();
+			try {
+				if (marshallingProfile == null) {
+					marshallingProfile = new MarshallingProfile(this, getRequestEnvelope());
+				}
+				profile = marshallingProfile;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return profile;
+	}
+	
+	/**
+	 * Returns the state prepared by a compiled extension for this service, null for other extensions
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Object getExtensionState(WSExtension extension) {
+		Map<WSExtension, Object> states = extensionStates;
+		if (states == null) {
+			lock.lock();
+			try {
+				if (extensionStates == null) {
+					Map<WSExtension, Object> prepared = new IdentityHashMap<WSExtension, Object>();
+					if (extensions != null) {
+						for (WSExtension current : extensions) {
+							if (current instanceof WSCompiledExtension) {
+								prepared.put(current, ((WSCompiledExtension) current).prepare(this));
+							}
+						}
+					}
+					extensionStates = Collections.unmodifiableMap(prepared);
+				}
+				states = extensionStates;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return states.get(extension);
+	}
+	
+	/**
+	 * Returns the prerendered envelope if it can be used for this service, null otherwise.
+	 * Extensions can modify the envelope in any way they see fit so they disable the template, unless they are compiled extensions that can write their header directly.
+	 */
+	public EnvelopeTemplate getEnvelopeTemplate() {
+		if (!prerenderEnvelope || backwardsCompatible || !canWriteExtensionHeaders()) {
+			return null;
+		}
+		EnvelopeTemplate template = envelopeTemplate;
+		if (template == null) {
+			lock.lock();
+			try {
+				if (envelopeTemplate == null) {
+					envelopeTemplate = new EnvelopeTemplate(this, getMarshallingProfile());
+				}
+				template = envelopeTemplate;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return template;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private boolean canWriteExtensionHeaders() {
+		if (extensions != null) {
+			for (WSExtension extension : extensions) {
+				if (!(extension instanceof WSCompiledExtension) || !((WSCompiledExtension) extension).canWriteHeader(getExtensionState(extension))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	ComplexType buildEnvelope(boolean isInput) {
+		Structure envelope = new Structure();
+		envelope.setName("Envelope");
+		envelope.setProperty(new ValueImpl<Boolean>(new AttributeQualifiedDefaultProperty(), false));
+		envelope.setProperty(new ValueImpl<Boolean>(new ElementQualifiedDefaultProperty(), true));
+		envelope.setNamespace(getSoapNamespace());
+		Structure header = new Structure();
+		header.setName("Header");
+		envelope.add(new ComplexElementImpl(header, envelope, new ValueImpl<Integer>(new MinOccursProperty(), 0)));
+		
+		
+		Structure body = new Structure();
+		body.setName("Body");
+		body.setNamespace(envelope.getNamespace());
+		if (isInput) {
+			// check if we have extensions in place
+			if (extensions != null) {
+				for (WSExtension extension : extensions) {
+					extension.addDefinition(this, envelope);
+				}
+			}
+			
+			// check if we have a header piece
+			if (operation.getInputPartLayout() != null && operation.getInputPartLayout().getHeader() != null && operation.getInputPartLayout().getHeader().getParts() != null
+					&& !operation.getInputPartLayout().getHeader().getParts().isEmpty()) {
+				// should only be one
+				for (MessagePart part : operation.getInputPartLayout().getHeader().getParts()) {
+					header.add(TypeBaseUtils.clone(part.getElement(), header));
+				}
+			}
+			
+			if (operation.getInputPartLayout() != null && operation.getInputPartLayout().getBody() != null) {
+				List<MessagePart> parts = operation.getInputPartLayout().getBody().getParts();
+				if (parts != null && !parts.isEmpty()) {
+					for (MessagePart part : parts) {
+						body.add(TypeBaseUtils.clone(part.getElement(), header));
+					}
+				}
+			}
+		}
+		else {
+			// check if we have a header piece
+			if (operation.getOutputPartLayout() != null && operation.getOutputPartLayout().getHeader() != null && operation.getOutputPartLayout().getHeader().getParts() != null
+					&& !operation.getOutputPartLayout().getHeader().getParts().isEmpty()) {
+				// should only be one
+				for (MessagePart part : operation.getOutputPartLayout().getHeader().getParts()) {
+					header.add(TypeBaseUtils.clone(part.getElement(), header));
+				}
+			}
+			
+			if (operation.getOutputPartLayout() != null && operation.getOutputPartLayout().getBody() != null) {
+				List<MessagePart> parts = operation.getOutputPartLayout().getBody().getParts();
+				if (parts != null && !parts.isEmpty()) {
+					for (MessagePart part : parts) {
+						body.add(TypeBaseUtils.clone(part.getElement(), header));
+					}
+				}
+				List<BindingOperationMessage> faults = operation.getFaults();
+				if (faults != null && !faults.isEmpty()) {
+					for (BindingOperationMessage fault : faults) {
+						List<MessagePart> faultParts = fault.getParts();
+						if (faultParts != null && !faultParts.isEmpty()) {
+							for (MessagePart faultPart : faultParts) {
+								body.add(TypeBaseUtils.clone(faultPart.getElement(), header));								
+							}
+						}
+					}
+				}
+			}
+		}
+		envelope.add(new ComplexElementImpl(body, envelope));
+		return envelope;
 	}
 
 	@Override
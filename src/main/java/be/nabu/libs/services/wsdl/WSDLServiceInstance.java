@@ -17,17 +17,35 @@
 
 package be.nabu.libs.services.wsdl;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import be.nabu.libs.authentication.api.principals.BasicPrincipal;
 import be.nabu.libs.http.api.HTTPResponse;
-import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.http.api.WebAuthorizationType;
 import be.nabu.libs.http.client.BasicAuthentication;
 import be.nabu.libs.http.client.NTLMPrincipalImpl;
 import be.nabu.libs.http.core.DefaultHTTPRequest;
@@ -36,20 +54,26 @@ import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.wsdl.api.InvocationPhase;
+import be.nabu.libs.services.wsdl.api.WSCompiledExtension;
 import be.nabu.libs.services.wsdl.api.WSExtension;
-import be.nabu.libs.types.BaseTypeInstance;
+import be.nabu.libs.services.wsdl.balancing.Endpoint;
+import be.nabu.libs.services.wsdl.balancing.EndpointPool;
+import be.nabu.libs.services.wsdl.cache.RequestCoalescer;
+import be.nabu.libs.services.wsdl.cache.ResponseCache;
+import be.nabu.libs.services.wsdl.cache.ResponseCache.CachedResponse;
+import be.nabu.libs.services.wsdl.http.PooledHTTPClientProvider;
+import be.nabu.libs.services.wsdl.resilience.CircuitBreaker;
+import be.nabu.libs.services.wsdl.resilience.CircuitBreakerPolicy;
+import be.nabu.libs.services.wsdl.resilience.ConcurrencyLimitPolicy;
+import be.nabu.libs.services.wsdl.resilience.ConcurrencyLimiter;
+import be.nabu.libs.services.wsdl.resilience.RateLimiter;
+import be.nabu.libs.services.wsdl.resilience.RetryPolicy;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
-import be.nabu.libs.types.base.ComplexElementImpl;
-import be.nabu.libs.types.base.TypeBaseUtils;
-import be.nabu.libs.types.base.ValueImpl;
 import be.nabu.libs.types.binding.api.Window;
 import be.nabu.libs.types.binding.xml.XMLBinding;
 import be.nabu.libs.types.binding.xml.XMLMarshaller;
-import be.nabu.libs.types.properties.AttributeQualifiedDefaultProperty;
-import be.nabu.libs.types.properties.ElementQualifiedDefaultProperty;
-import be.nabu.libs.types.properties.MinOccursProperty;
-import be.nabu.libs.types.structure.Structure;
 import be.nabu.libs.wsdl.api.BindingOperationMessage;
 import be.nabu.libs.wsdl.api.BindingOperationMessageLayout;
 import be.nabu.libs.wsdl.api.MessagePart;
@@ -77,15 +101,59 @@ public class WSDLServiceInstance implements ServiceInstance {
 	}
 	
 	LimitedReadableContainer<ByteBuffer> buildInput(ComplexContent input, Charset charset) throws IOException {
-		ComplexType buildRequestEnvelope = buildRequestEnvelope(true);
-		ComplexContent envelope = buildRequestEnvelope.newInstance();
-		envelope.set("Body", ((ComplexType) buildRequestEnvelope.get("Body").getType()).newInstance());
+		return buildInput(input, charset, null);
+	}
+	
+	private LimitedReadableContainer<ByteBuffer> buildInput(ComplexContent input, Charset charset, long [] timings) throws IOException {
+		ByteBuffer buffer = IOUtils.newByteBuffer();
+		writeInput(input, IOUtils.toOutputStream(buffer), charset, timings);
+		return buffer;
+	}
+	
+	void writeInput(ComplexContent input, OutputStream output, Charset charset) throws IOException {
+		writeInput(input, output, charset, null);
+	}
+	
+	/**
+	 * If timings are passed in, the time spent in the different phases is added to them
+	 */
+	void writeInput(ComplexContent input, OutputStream output, Charset charset, long [] timings) throws IOException {
+		writeInput(input, output, charset, timings, null);
+	}
+	
+	/**
+	 * If a digest is passed in, it is updated with the request except for what the extensions add to it.
+	 * Returns false if that can not be separated (extensions that can not write their header build the envelope as a whole), the digest is then not usable.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private boolean writeInput(ComplexContent input, OutputStream output, Charset charset, long [] timings, MessageDigest digest) throws IOException {
+		long started = timings == null ? 0 : System.nanoTime();
+		EnvelopeTemplate template = definition.getEnvelopeTemplate();
+		if (template != null && template.canWrite(input)) {
+			template.write(input, output, charset, digest);
+			elapsed(timings, InvocationPhase.MARSHAL, started);
+			return digest != null;
+		}
+		boolean digested = digest != null && (definition.getExtensions() == null || definition.getExtensions().isEmpty());
+		if (digested) {
+			output = new DigestOutputStream(output, digest);
+		}
+		ComplexType requestEnvelope = definition.getRequestEnvelope();
+		ComplexContent envelope = requestEnvelope.newInstance();
+		envelope.set("Body", ((ComplexType) requestEnvelope.get("Body").getType()).newInstance());
+		started = elapsed(timings, InvocationPhase.ENVELOPE, started);
 		
 		// check if we have extensions in place
 		if (definition.getExtensions() != null) {
 			for (WSExtension extension : definition.getExtensions()) {
-				extension.addInstance(definition, envelope, input);
+				if (extension instanceof WSCompiledExtension) {
+					((WSCompiledExtension) extension).addInstance(definition.getExtensionState(extension), definition, envelope, input);
+				}
+				else {
+					extension.addInstance(definition, envelope, input);
+				}
 			}
+			started = elapsed(timings, InvocationPhase.AUTHENTICATION, started);
 		}
 		
 		if (input != null) {
@@ -106,58 +174,517 @@ public class WSDLServiceInstance implements ServiceInstance {
 				}
 			}
 		}
-		// use marshaller directly to access more features
-		XMLMarshaller marshaller = new XMLMarshaller(new BaseTypeInstance(buildRequestEnvelope));
-		ByteBuffer buffer = IOUtils.newByteBuffer();
-		marshaller.setAllowXSI(definition.isAllowXsi());
-		marshaller.setAllowDefaultNamespace(definition.isAllowDefaultNamespace());
-		marshaller.setAllowQualifiedOverride(true);
-		if (definition.isAllowDefaultNamespace()) {
-			// we set the default namespace to that of the actual input, not all parsers are too good with namespaces, having the main content
-			// with as few prefixes as possible is always a good thing
-			if (input != null) {
-				marshaller.setDefaultNamespace(input.getType().getNamespace());
+		started = elapsed(timings, InvocationPhase.ENVELOPE, started);
+		XMLMarshaller marshaller = definition.getMarshallingProfile().newMarshaller(input);
+		marshaller.marshal(output, charset, envelope);
+		elapsed(timings, InvocationPhase.MARSHAL, started);
+		return digested;
+	}
+	
+	/**
+	 * Adds the time since the start to the phase and returns the current time so it can be used as the start of the next phase
+	 */
+	private static long elapsed(long [] timings, InvocationPhase phase, long started) {
+		if (timings == null) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		timings[phase.ordinal()] += now - started;
+		return now;
+	}
+	
+	ComplexContent parseOutput(ReadableContainer<ByteBuffer> input, Charset charset) throws IOException, ParseException {
+		return parseOutput(IOUtils.toInputStream(input), charset);
+	}
+	
+	private ComplexContent parseOutput(InputStream input, Charset charset) throws IOException, ParseException {
+		XMLBinding responseBinding = new XMLBinding(definition.getResponseEnvelope(), charset);
+		responseBinding.setIgnoreUndefined(true);
+		List<Window> windows = definition.getWindows();
+		return responseBinding.unmarshal(input, windows == null ? new Window[0] : windows.toArray(new Window[windows.size()]));
+	}
+
+	@Override
+	public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+		ResponseCache cache = getResponseCache();
+		RequestCoalescer coalescer = definition.getRequestCoalescer();
+		WSDLExchange exchange = new WSDLExchange(definition, input);
+		String key = cache == null && coalescer == null ? null : getKey(exchange);
+		String cacheKey = cache == null ? null : key;
+		if (cacheKey != null) {
+			CachedResponse cached = cache.get(cacheKey);
+			if (cached != null) {
+				if (cached.getException() != null) {
+					throw cached.getException();
+				}
+				return cached.getOutput();
+			}
+		}
+		try {
+			String coalescingKey = coalescer == null || key == null ? null : getCoalescingKey(input, key);
+			ComplexContent output = coalescingKey == null ? invoke(exchange) : coalescer.execute(coalescingKey, () -> invoke(exchange), getTimeout(input));
+			if (cacheKey != null) {
+				cache.put(cacheKey, output, hasFault(output));
+			}
+			return output;
+		}
+		catch (ServiceException e) {
+			if (cacheKey != null && "SOAP-2".equals(e.getCode())) {
+				cache.putFault(cacheKey, e);
+			}
+			throw e;
+		}
+	}
+	
+	private ComplexContent invoke(WSDLExchange exchange) throws ServiceException {
+		Exception exception = null;
+		boolean hedged = false;
+		try {
+			prepare(exchange);
+			if (isHedged()) {
+				// the attempts close and record their own exchange
+				hedged = true;
+				return await(new HedgedInvocation(this, definition.getHedgingPolicy(), definition.getExecutor()).start(exchange), exchange);
+			}
+			return call(exchange);
+		}
+		catch (RuntimeException e) {
+			exception = e;
+			throw e;
+		}
+		catch (Exception e) {
+			ServiceException wrapped = wrap(e);
+			exception = wrapped;
+			throw wrapped;
+		}
+		finally {
+			if (!hedged) {
+				exchange.close();
+				exchange.record(exception);
+			}
+		}
+	}
+	
+	/**
+	 * Sends the prepared request and handles the response, retrying according to the retry policy
+	 */
+	ComplexContent call(WSDLExchange exchange) throws Exception {
+		for (int attempt = 1;; attempt++) {
+			try {
+				send(exchange);
+				return handle(exchange);
+			}
+			catch (Exception e) {
+				// the watchdog aborted the exchange, whatever exception that caused is not the real problem
+				if (exchange.timedOut && !isTimeout(e)) {
+					throw exchange.newTimeout(e);
+				}
+				if (!isRetryable(exchange, attempt, e)) {
+					throw e;
+				}
+				Thread.sleep(getBackoff(exchange, attempt));
+				// the deadline may have passed while we waited, another attempt could only time out
+				if (exchange.getRemaining() <= 0) {
+					throw exchange.newTimeout(e);
+				}
+				retry(exchange);
+			}
+		}
+	}
+	
+	/**
+	 * The asynchronous variant of call, the backoff is a timer so no thread is blocked while waiting
+	 */
+	private CompletableFuture<ComplexContent> callAsync(WSDLExchange exchange, Executor executor, int attempt) {
+		CompletableFuture<ComplexContent> future = CompletableFuture.supplyAsync(() -> stage(() -> send(exchange)), executor)
+			.thenApplyAsync(sent -> stage(() -> handle(sent)), executor);
+		if (definition.getRetryPolicy() == null && exchange.deadline == 0) {
+			return future;
+		}
+		return future.handle((output, exception) -> {
+			CompletableFuture<ComplexContent> next = new CompletableFuture<ComplexContent>();
+			if (exception == null) {
+				next.complete(output);
+			}
+			else if (exchange.timedOut && !isTimeout(unwrap(exception))) {
+				next.completeExceptionally(new CompletionException(exchange.newTimeout(unwrap(exception))));
+			}
+			else if (!isRetryable(exchange, attempt, unwrap(exception))) {
+				next.completeExceptionally(exception);
 			}
 			else {
-				marshaller.setDefaultNamespace(getDefinition().getOperation().getDefinition().getTargetNamespace());
+				// the scheduler only waits out the backoff, the retry itself and whatever depends on the future run on the executor
+				WSDLExecutors.getScheduler().schedule(() -> executor.execute(() -> {
+					if (exchange.getRemaining() <= 0) {
+						next.completeExceptionally(new CompletionException(exchange.newTimeout(unwrap(exception))));
+						return;
+					}
+					try {
+						retry(exchange);
+					}
+					catch (Exception e) {
+						next.completeExceptionally(new CompletionException(wrap(e)));
+						return;
+					}
+					callAsync(exchange, executor, attempt + 1).whenComplete((result, failure) -> {
+						if (failure == null) {
+							next.complete(result);
+						}
+						else {
+							next.completeExceptionally(failure);
+						}
+					});
+				}), getBackoff(exchange, attempt), TimeUnit.MILLISECONDS);
+			}
+			return next;
+		}).thenCompose(next -> next);
+	}
+	
+	/**
+	 * The backoff before the next attempt, it never extends beyond the deadline
+	 */
+	private long getBackoff(WSDLExchange exchange, int attempt) {
+		return Math.max(0, Math.min(definition.getRetryPolicy().getBackoff(attempt), exchange.getRemaining()));
+	}
+	
+	private boolean isRetryable(WSDLExchange exchange, int attempt, Throwable exception) {
+		RetryPolicy retry = definition.getRetryPolicy();
+		// we need the request to send it again, an open circuit is never retried
+		return retry != null && exchange.request != null && !exchange.isAborted() && exchange.getRemaining() > 0 && !isOpenCircuit(exception)
+			&& retry.isRetryable(attempt, exchange.status, exchange.faultCode, exception);
+	}
+	
+	private static boolean isTimeout(Throwable exception) {
+		return exception instanceof ServiceException && "SOAP-7".equals(((ServiceException) exception).getCode());
+	}
+	
+	/**
+	 * Prepares the exchange for the next attempt, if the endpoint comes from a pool a new one is selected
+	 */
+	private void retry(WSDLExchange exchange) throws URISyntaxException {
+		exchange.reset();
+		if (exchange.target != null) {
+			Endpoint next = exchange.endpoints.select(null);
+			if (next != null) {
+				exchange.retarget(next);
 			}
 		}
-		boolean soapNamespaceFixed = false;
-		if (getDefinition().getNamespaces() != null) {
-			for (PredefinedNamespace namespace : getDefinition().getNamespaces()) {
-				marshaller.setPrefix(namespace.getPrefix(), namespace.getNamespace());
-				soapNamespaceFixed |= buildRequestEnvelope.getNamespace().equals(namespace.getNamespace());
+	}
+	
+	private static boolean isOpenCircuit(Throwable exception) {
+		return exception instanceof ServiceException && "SOAP-4".equals(((ServiceException) exception).getCode());
+	}
+	
+	/**
+	 * Whether the request was rejected locally by the circuit breaker, the concurrency limiter or the rate limiter
+	 */
+	private static boolean isRejected(Throwable exception) {
+		return isOpenCircuit(exception) || (exception instanceof ServiceException 
+			&& ("SOAP-5".equals(((ServiceException) exception).getCode()) || "SOAP-6".equals(((ServiceException) exception).getCode())));
+	}
+	
+	/**
+	 * A rate limit that is not per endpoint applies to the other endpoints just the same
+	 */
+	private boolean isSharedRateLimit(Throwable exception) {
+		return exception instanceof ServiceException && "SOAP-6".equals(((ServiceException) exception).getCode())
+			&& definition.getRateLimiter() != null && !definition.getRateLimiter().isPerEndpoint();
+	}
+	
+	private boolean isHedged() {
+		// a streamed request can only be sent once
+		return definition.getHedgingPolicy() != null && !definition.isStreamRequests();
+	}
+	
+	private static ComplexContent await(CompletableFuture<ComplexContent> future, WSDLExchange exchange) throws ServiceException {
+		try {
+			// the attempts abort themselves at the deadline, but they can only do that if the client can be closed
+			return exchange.deadline == 0 ? future.get() : future.get(Math.max(0, exchange.getRemaining()), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			throw exchange.newTimeout(null);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
+			throw wrap(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
 		}
-		if (!soapNamespaceFixed) {
-			// fix the soap prefix, otherwise it will be autogenerated as "tns1"
-			// again: some parsers aren't too bright
-			marshaller.setPrefix(buildRequestEnvelope.getNamespace(), "soap");
+	}
+	
+	/**
+	 * Executes the service with each phase (preparing the request, the http exchange and handling the response) as a separate stage on the executor of the service.
+	 * If the invocation fails, the future completes exceptionally with a CompletionException wrapping the ServiceException.
+	 */
+	public CompletableFuture<ComplexContent> executeAsync(ExecutionContext executionContext, ComplexContent input) {
+		return executeAsync(executionContext, input, definition.getExecutor());
+	}
+	
+	public CompletableFuture<ComplexContent> executeAsync(ExecutionContext executionContext, ComplexContent input, Executor executor) {
+		final ResponseCache cache = getResponseCache();
+		final RequestCoalescer coalescer = definition.getRequestCoalescer();
+		final WSDLExchange exchange = new WSDLExchange(definition, input);
+		final String cacheKey, coalescingKey;
+		final long timeout;
+		try {
+			String key = cache == null && coalescer == null ? null : getKey(exchange);
+			cacheKey = cache == null ? null : key;
+			coalescingKey = coalescer == null || key == null ? null : getCoalescingKey(input, key);
+			timeout = coalescingKey == null ? 0 : getTimeout(input);
+		}
+		catch (ServiceException e) {
+			return failed(e);
+		}
+		if (cacheKey != null) {
+			CachedResponse cached = cache.get(cacheKey);
+			if (cached != null) {
+				return cached.getException() != null ? failed(cached.getException()) : CompletableFuture.completedFuture(cached.getOutput());
+			}
 		}
-		if (getDefinition().getExtensions() != null) {
-			for (WSExtension extension : getDefinition().getExtensions()) {
-				Map<String, String> preferredPrefixes = extension.getPreferredPrefixes();
-				if (preferredPrefixes != null) {
-					for (Map.Entry<String, String> prefix : preferredPrefixes.entrySet()) {
-						marshaller.setPrefix(prefix.getKey(), prefix.getValue());
+		CompletableFuture<ComplexContent> future = coalescingKey == null ? invokeAsync(exchange, executor) : coalescer.executeAsync(coalescingKey, () -> invokeAsync(exchange, executor), timeout, executor);
+		if (cacheKey == null) {
+			return future;
+		}
+		return future.whenComplete((output, exception) -> {
+			if (exception == null) {
+				cache.put(cacheKey, output, hasFault(output));
+			}
+			else if (exception.getCause() instanceof ServiceException && "SOAP-2".equals(((ServiceException) exception.getCause()).getCode())) {
+				cache.putFault(cacheKey, (ServiceException) exception.getCause());
+			}
+		});
+	}
+	
+	private CompletableFuture<ComplexContent> invokeAsync(final WSDLExchange exchange, Executor executor) {
+		CompletableFuture<WSDLExchange> prepared = CompletableFuture.supplyAsync(() -> stage(() -> prepare(exchange)), executor);
+		if (isHedged()) {
+			CompletableFuture<ComplexContent> future = prepared
+				.whenComplete((result, exception) -> {
+					// once prepared, the attempts close and record their own exchange
+					if (exception != null) {
+						exchange.close();
+						exchange.record(unwrap(exception));
 					}
-				}
+				})
+				.thenCompose(result -> new HedgedInvocation(this, definition.getHedgingPolicy(), executor).start(result));
+			return withDeadline(future, prepared, exchange, executor);
+		}
+		return withDeadline(prepared
+			.thenCompose(result -> callAsync(result, executor, 1))
+			.whenComplete((output, exception) -> {
+				exchange.close();
+				exchange.record(unwrap(exception));
+			}), prepared, exchange, executor);
+	}
+	
+	/**
+	 * Completes the future with SOAP-7 once the deadline passes, even if the exchange itself could not be aborted.
+	 * An adaptive deadline is only known once the endpoint is, so the timer is started when the exchange is prepared.
+	 * The scheduler only triggers the timeout, the future is completed on the executor so the callbacks of the caller never run on the scheduler thread.
+	 */
+	private static CompletableFuture<ComplexContent> withDeadline(CompletableFuture<ComplexContent> future, CompletableFuture<WSDLExchange> prepared, WSDLExchange exchange, Executor executor) {
+		if (exchange.deadline == 0 && !exchange.adaptive) {
+			return future;
+		}
+		CompletableFuture<ComplexContent> result = new CompletableFuture<ComplexContent>();
+		prepared.thenRun(() -> {
+			if (exchange.deadline != 0) {
+				ScheduledFuture<?> timer = WSDLExecutors.getScheduler().schedule(() -> executor.execute(() -> {
+					result.completeExceptionally(new CompletionException(exchange.newTimeout(null)));
+				}), Math.max(0, exchange.getRemaining()), TimeUnit.MILLISECONDS);
+				result.whenComplete((output, exception) -> timer.cancel(false));
+			}
+		});
+		future.whenComplete((output, exception) -> {
+			if (exception == null) {
+				result.complete(output);
+			}
+			else {
+				result.completeExceptionally(exception);
 			}
+		});
+		return result;
+	}
+	
+	private ResponseCache getResponseCache() {
+		ResponseCache cache = definition.getResponseCache();
+		return cache != null && cache.isCacheable(definition) ? cache : null;
+	}
+	
+	/**
+	 * The key for the response cache and the request coalescer is built from the service, the user and a digest of the marshalled request and the password.
+	 * The endpoint and the transaction id are not part of the request, anything added by extensions (e.g. security tokens) is left out of the digest.
+	 * The request is marshalled into the exchange while it is digested, prepare sends those bytes so it is only marshalled once.
+	 * Returns null if the request can not be digested, in which case the call is not cached or coalesced.
+	 */
+	String getKey(WSDLExchange exchange) throws ServiceException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer buffer = IOUtils.newByteBuffer();
+			boolean digested = writeInput(exchange.input, IOUtils.toOutputStream(buffer), getDefinition().getCharset(), exchange.timings, digest);
+			exchange.buffer = buffer;
+			if (!digested) {
+				return null;
+			}
+			ComplexContent input = exchange.input;
+			String username = input == null || input.get("authentication/username") == null ? definition.getUsername() : (String) input.get("authentication/username");
+			String password = input == null || input.get("authentication/password") == null ? definition.getPassword() : (String) input.get("authentication/password");
+			// the password is part of the digest, a caller with other (e.g. wrong) credentials never gets a response that was produced for valid ones
+			if (password != null) {
+				digest.update((byte) 0);
+				digest.update(password.getBytes(StandardCharsets.UTF_8));
+			}
+			return definition.getId() + ":" + (username == null ? "" : username) + ":" + DigestUtils.toHex(digest.digest());
+		}
+		catch (IOException e) {
+			throw new ServiceException(e);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new ServiceException(e);
 		}
-		marshaller.marshal(IOUtils.toOutputStream(buffer), charset, envelope);
-		return buffer;
 	}
 	
-	ComplexContent parseOutput(ReadableContainer<ByteBuffer> input, Charset charset) throws IOException, ParseException {
-		XMLBinding responseBinding = new XMLBinding(buildRequestEnvelope(false), charset);
-		responseBinding.setIgnoreUndefined(true);
-		return responseBinding.unmarshal(IOUtils.toInputStream(input), new Window[0]);
+	/**
+	 * The timeout (in ms) of a call before it is prepared, an adaptive timeout is only known per endpoint so the ceiling is used for a pool of endpoints.
+	 * Returns 0 if there is none.
+	 */
+	private long getTimeout(ComplexContent input) throws ServiceException {
+		Object timeout = input == null ? null : input.get("timeout");
+		if (timeout instanceof Number) {
+			return ((Number) timeout).longValue();
+		}
+		else if (definition.getAdaptiveTimeoutPolicy() != null) {
+			boolean pooled = (input == null || input.get("endpoint") == null) && definition.resolveEndpointPool() != null;
+			return pooled ? definition.getAdaptiveTimeoutPolicy().getCeiling() : definition.getEffectiveTimeout(resolveEndpoint(input));
+		}
+		return definition.getTimeout();
 	}
+	
+	/**
+	 * Requests are coalesced if they are the same according to the cache key and go to the same endpoint (or the same pool of endpoints)
+	 */
+	private String getCoalescingKey(ComplexContent input, String key) throws ServiceException {
+		boolean pooled = (input == null || input.get("endpoint") == null) && definition.resolveEndpointPool() != null;
+		return key + "@" + (pooled ? "*" : resolveEndpoint(input));
+	}
+	
+	private boolean hasFault(ComplexContent output) {
+		if (output == null) {
+			return false;
+		}
+		if (definition.isBackwardsCompatible()) {
+			return output.get("fault") != null;
+		}
+		if (getDefinition().getOperation().getFaults() != null) {
+			for (BindingOperationMessage message : getDefinition().getOperation().getFaults()) {
+				if (message.getParts() != null) {
+					for (MessagePart part : message.getParts()) {
+						if (output.get("fault/" + part.getElement().getName()) != null) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+	
+	WSDLExchange prepare(WSDLExchange exchange) throws ServiceException, IOException, URISyntaxException {
+		ComplexContent input = exchange.input;
+		exchange.transactionId = input == null ? null : (String) input.get("transactionId");
+		String endpoint = null;
+		// an endpoint in the input always wins, otherwise we select one from the pool (if any)
+		if (input == null || input.get("endpoint") == null) {
+			exchange.endpoints = definition.resolveEndpointPool();
+			exchange.target = exchange.endpoints == null ? null : exchange.endpoints.select(null);
+			if (exchange.target != null) {
+				endpoint = exchange.target.getUrl();
+			}
+		}
+		if (endpoint == null) {
+			endpoint = resolveEndpoint(input);
+		}
+		exchange.endpoint = endpoint;
+		exchange.uri = new URI(URIUtils.encodeURI(endpoint));
+		if (exchange.adaptive) {
+			exchange.setTimeout(definition.getAdaptiveTimeoutPolicy().getTimeout(definition.getId(), endpoint));
+		}
+		
+		if (definition.isStreamRequests() && exchange.buffer == null) {
+			exchange.streamed = new StreamedInput(this, input, getDefinition().getCharset(), definition.getStreamBufferSize(), exchange.timings);
+			WSDLExecutors.getStreamingExecutor().execute(exchange.streamed);
+		}
+		else {
+			// the request is already marshalled if it was digested for the cache or the coalescer
+			if (exchange.buffer == null) {
+				exchange.buffer = buildInput(input, getDefinition().getCharset(), exchange.timings);
+			}
+			exchange.requestBytes = exchange.buffer.remainingData();
+			// if we might fail over to another endpoint, retry or hedge, keep the bytes so they can be sent again without marshalling
+			if ((exchange.target != null && exchange.endpoints.size() > 1) || definition.getRetryPolicy() != null || isHedged()) {
+				exchange.request = IOUtils.toBytes(exchange.buffer);
+			}
+		}
+		
+		long started = exchange.start();
+		final String username = input == null || input.get("authentication/username") == null ? definition.getUsername() : (String) input.get("authentication/username");
+		final String password = input == null || input.get("authentication/password") == null ? definition.getPassword() : (String) input.get("authentication/password");
 
-	@Override
-	public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
-		String endpoint = (String) input.get("endpoint");
-		String transactionId = (String) input.get("transactionId");
+		exchange.username = username;
+		if (username != null) {
+			int index = username.indexOf('/');
+			if (index < 0) {
+				index = username.indexOf('\\');
+			}
+			if (index < 0) {
+				exchange.principal = new BasicPrincipal() {
+					private static final long serialVersionUID = 1L;
+					@Override
+					public String getName() {
+						return username;
+					}
+					@Override
+					public String getPassword() {
+						return password;
+					}
+				};
+			}
+			// create an NTLM principal
+			else {
+				exchange.principal = new NTLMPrincipalImpl(username.substring(0, index), username.substring(index + 1), password);
+				// ntlm authenticates the connection, so pooled connections are bound to the principal
+				exchange.connectionBound = true;
+			}
+			// the token is resolved before we hold a connection or any limiter, a token endpoint that fails is not a failure of the soap endpoint
+			if (definition.getPreemptiveAuthorizationType() == WebAuthorizationType.BEARER) {
+				exchange.token = resolveToken(exchange);
+			}
+		}
+		exchange.stop(InvocationPhase.AUTHENTICATION, started);
+		return exchange;
+	}
+	
+	private String resolveToken(WSDLExchange exchange) throws ServiceException {
+		BasicPrincipal principal = exchange.principal;
+		// without a provider, the username is the token
+		if (definition.getTokenProvider() == null) {
+			return principal.getName();
+		}
+		try {
+			return definition.getTokenProvider().getToken(definition, principal.getName(), principal.getPassword(), exchange.getRemaining());
+		}
+		catch (IOException e) {
+			exchange.checkDeadline();
+			throw new ServiceException("SOAP-8", "Could not get a token for: " + principal.getName(), e);
+		}
+	}
+	
+	private String resolveEndpoint(ComplexContent input) throws ServiceException {
+		String endpoint = input == null ? null : (String) input.get("endpoint");
 		if (endpoint == null) {
 			endpoint = getDefinition().getEndpoint();
 		}
@@ -168,229 +695,363 @@ public class WSDLServiceInstance implements ServiceInstance {
 		if (endpoint == null) {
 			throw new ServiceException("SOAP-1", "No endpoint passed in and none were found in the wsdl");
 		}
-		try {
-			LimitedReadableContainer<ByteBuffer> buffer = buildInput((ComplexContent) input, getDefinition().getCharset());
-			
-			final String username = input == null || input.get("authentication/username") == null ? definition.getUsername() : (String) input.get("authentication/username");
-			final String password = input == null || input.get("authentication/password") == null ? definition.getPassword() : (String) input.get("authentication/password");
-
-			BasicPrincipal principal = null;
-			if (username != null) {
-				int index = username.indexOf('/');
-				if (index < 0) {
-					index = username.indexOf('\\');
+		return endpoint;
+	}
+	
+	/**
+	 * Sends the request, if the endpoint was selected from a pool and the connection can not be established, it is sent to the next endpoint
+	 */
+	WSDLExchange send(WSDLExchange exchange) throws ServiceException, IOException, FormatException, ParseException, InterruptedException, URISyntaxException {
+		if (exchange.target == null) {
+			return guard(exchange);
+		}
+		EndpointPool endpoints = exchange.endpoints;
+		int maxAttempts = endpoints.getMaxAttempts() <= 0 ? endpoints.size() : endpoints.getMaxAttempts();
+		while (true) {
+			Endpoint target = exchange.target;
+			endpoints.begin(target);
+			long started = System.nanoTime();
+			try {
+				guard(exchange);
+				endpoints.end(target, System.nanoTime() - started, exchange.status, null);
+				return exchange;
+			}
+			catch (Exception e) {
+				endpoints.end(target, System.nanoTime() - started, exchange.status, e);
+				// streamed requests can not be sent again
+				if (exchange.request == null || exchange.isAborted() || !(endpoints.isFailover(e) || (isRejected(e) && !isSharedRateLimit(e)))) {
+					throw e;
 				}
-				if (index < 0) {
-					principal = new BasicPrincipal() {
-						private static final long serialVersionUID = 1L;
-						@Override
-						public String getName() {
-							return username;
-						}
-						@Override
-						public String getPassword() {
-							return password;
-						}
-					};
+				if (exchange.attempted == null) {
+					exchange.attempted = new ArrayList<Endpoint>();
 				}
-				// create an NTLM principal
-				else if (username != null) {
-					principal = new NTLMPrincipalImpl(username.substring(0, index), username.substring(index + 1), password);
+				exchange.attempted.add(target);
+				Endpoint next = exchange.attempted.size() < maxAttempts ? endpoints.select(exchange.attempted) : null;
+				if (next == null) {
+					throw e;
 				}
+				exchange.release();
+				exchange.retarget(next);
 			}
-			
-			URI uri = new URI(URIUtils.encodeURI(endpoint));
-			HTTPClient client = getDefinition().getHttpClientProvider().newHTTPClient(transactionId);
-			PlainMimeContentPart content = new PlainMimeContentPart(null, buffer,
-				new MimeHeader("Content-Length", new Long(buffer.remainingData()).toString()),
-				new MimeHeader("Content-Type", (getDefinition().getOperation().getDefinition().getSoapVersion() == 1.2 ? "application/soap+xml" : "text/xml") + "; charset=" + getDefinition().getCharset().displayName().toLowerCase()),
-				new MimeHeader("Host", uri.getAuthority())
-			);
-			// this should be ok because the buffer is a DynamicByteBuffer which is resettable
-			content.setReopenable(true);
-			
-			if (getDefinition().getOperation().getSoapAction() != null) {
-				content.setHeader(new MimeHeader("SOAPAction", "\"" + getDefinition().getOperation().getSoapAction() + "\""));
-			}
-			
-			if (definition.getPreemptiveAuthorizationType() != null && principal != null) {
-				switch(definition.getPreemptiveAuthorizationType()) {
-					case BASIC:
-						content.setHeader(new MimeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, new BasicAuthentication().authenticate(principal, "basic")));
-					break;
-					case BEARER:
-						content.setHeader(new MimeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, "Bearer " + principal.getName()));
-					break;
-				}
+		}
+	}
+	
+	/**
+	 * Sends the request through the rate limiter, the circuit breaker and the concurrency limiter of the endpoint (if any)
+	 */
+	private WSDLExchange guard(WSDLExchange exchange) throws ServiceException, IOException, FormatException, ParseException, InterruptedException {
+		// we never wait for a token or a slot beyond the deadline, if the token would come too late we are rejected right away
+		RateLimiter rateLimiter = definition.getRateLimiter();
+		if (rateLimiter != null && !rateLimiter.acquire(exchange.endpoint, exchange.username, exchange.getRemaining())) {
+			throw new ServiceException("SOAP-6", "The rate limit is exceeded for: " + rateLimiter.getKey(exchange.endpoint, exchange.username));
+		}
+		CircuitBreakerPolicy breakers = definition.getCircuitBreakerPolicy();
+		ConcurrencyLimitPolicy limiters = definition.getConcurrencyLimitPolicy();
+		if (breakers == null && limiters == null) {
+			return transmit(exchange);
+		}
+		// check the breaker first, there is no point in queueing for an endpoint that is down
+		CircuitBreaker.Permit breaker = breakers == null ? null : breakers.getCircuitBreaker(exchange.endpoint).acquire();
+		if (breakers != null && breaker == null) {
+			throw new ServiceException("SOAP-4", "The circuit breaker is open for: " + exchange.endpoint);
+		}
+		ConcurrencyLimiter limiter = limiters == null ? null : limiters.getConcurrencyLimiter(exchange.endpoint);
+		boolean acquired = false;
+		try {
+			acquired = limiter == null || limiter.acquire(exchange.getRemaining());
+		}
+		finally {
+			if (!acquired && breaker != null) {
+				breaker.onIgnored();
 			}
-			
-			HTTPResponse httpResponse = client.execute(
-				new DefaultHTTPRequest("POST", definition.isUseFullPathTarget() ? uri.toString() : uri.getPath(), content), 
-				principal, 
-				endpoint.startsWith("https"), 
-				true
-			);
-			if ((httpResponse.getCode() >= 200 && httpResponse.getCode() < 300) || (getDefinition().getAllowedHttpCodes() != null && getDefinition().getAllowedHttpCodes().contains(httpResponse.getCode()))) {
-				ContentPart contentPart;
-				if (httpResponse.getContent() instanceof ContentPart) {
-					contentPart = (ContentPart) httpResponse.getContent();
+		}
+		if (!acquired) {
+			// we waited in the queue until the deadline
+			exchange.checkDeadline();
+			throw new ServiceException("SOAP-5", "The concurrency limit is reached for: " + exchange.endpoint);
+		}
+		long started = System.nanoTime();
+		Exception exception = null;
+		try {
+			return transmit(exchange);
+		}
+		catch (Exception e) {
+			exception = e;
+			throw e;
+		}
+		finally {
+			long duration = System.nanoTime() - started;
+			if (breaker != null) {
+				if (breakers.isFailure(exchange.status, exception)) {
+					breaker.onFailure(duration);
 				}
-				else if (httpResponse.getContent() instanceof MultiPart) {
-					contentPart = (ContentPart) ((MultiPart) httpResponse.getContent()).getChild("part0");
+				else if (exception == null || exchange.status != 0) {
+					breaker.onSuccess(duration);
 				}
 				else {
-					throw new IllegalStateException("Could not find content part for response");
+					breaker.onIgnored();
 				}
-				ComplexContent response = parseOutput(contentPart.getReadable(), getDefinition().getCharset());
-				ComplexContent output = getDefinition().getServiceInterface().getOutputDefinition().newInstance();
-				if (definition.isBackwardsCompatible()) {
-					if (getDefinition().getOperation().getOperation().getOutput() != null && !getDefinition().getOperation().getOperation().getOutput().getParts().isEmpty()) {
-						output.set("response", ((ComplexContent) response.get("Body")).get(getDefinition().getOperation().getOperation().getOutput().getParts().get(0).getElement().getName()));
-					}
-					if (getDefinition().getOperation().getOperation().getFaults() != null && !getDefinition().getOperation().getOperation().getFaults().isEmpty() && !getDefinition().getOperation().getOperation().getFaults().get(0).getParts().isEmpty()) {
-						output.set("fault", ((ComplexContent) response.get("Body")).get(getDefinition().getOperation().getOperation().getFaults().get(0).getParts().get(0).getElement().getName()));
-					}
-				}
-				else if (getDefinition().getOperation().getOutputPartLayout() != null) {
-					BindingOperationMessage body = getDefinition().getOperation().getOutputPartLayout().getBody();
-					if (body != null && body.getParts() != null && !body.getParts().isEmpty()) {
-						for (MessagePart part : body.getParts()) {
-							output.set("body/" + part.getElement().getName(), response.get("Body/" + part.getElement().getName()));
-						}
-					}
-					BindingOperationMessage header = getDefinition().getOperation().getOutputPartLayout().getHeader();
-					if (header != null && header.getParts() != null && !header.getParts().isEmpty()) {
-						for (MessagePart part : header.getParts()) {
-							output.set("header/" + part.getElement().getName(), response.get("Header/" + part.getElement().getName()));
-						}
-					}
-					if (getDefinition().getOperation().getFaults() != null) {
-						for (BindingOperationMessage message : getDefinition().getOperation().getFaults()) {
-							if (message.getParts() != null) {
-								for (MessagePart part : message.getParts()) {
-									output.set("fault/" + part.getElement().getName(), response.get("Body/" + part.getElement().getName()));
-								}		
-							}
-						}
-					}
-				}
-				return output;
 			}
-			else {
-				byte[] bytes = null;
-				ContentPart contentPart = null;
-				if (httpResponse.getContent() instanceof ContentPart) {
-					contentPart = (ContentPart) httpResponse.getContent();
-				}
-				else if (httpResponse.getContent() instanceof MultiPart) {
-					contentPart = (ContentPart) ((MultiPart) httpResponse.getContent()).getChild("part0");
+			if (limiter != null) {
+				if (exception == null || exchange.status != 0 || limiters.isDropped(exchange.status, exception)) {
+					limiter.release(duration, limiters.isDropped(exchange.status, exception));
 				}
-				if (contentPart != null) {
-					ReadableContainer<ByteBuffer> readable = contentPart.getReadable();
-					if (readable != null) {
-						try {
-							bytes = IOUtils.toBytes(readable);
-						}
-						finally {
-							readable.close();
-						}
-					}
+				else {
+					limiter.release();
 				}
-				throw new ServiceException("SOAP-2", "HTTP Exception [" + httpResponse.getCode() + "] " + httpResponse.getMessage() + (bytes == null ? "" : "\n" + new String(bytes)), httpResponse.getCode(), httpResponse.getMessage());
 			}
 		}
-		catch (IOException e) {
-			throw new ServiceException(e);
+	}
+	
+	private WSDLExchange transmit(WSDLExchange exchange) throws ServiceException, IOException, FormatException, ParseException, InterruptedException {
+		URI uri = exchange.uri;
+		exchange.checkDeadline();
+		exchange.watch();
+		if (exchange.request != null) {
+			exchange.buffer = IOUtils.wrap(exchange.request, true);
 		}
-		catch (FormatException e) {
-			throw new ServiceException(e);
+		if (getDefinition().getHttpClientProvider() instanceof PooledHTTPClientProvider) {
+			exchange.pool = (PooledHTTPClientProvider) getDefinition().getHttpClientProvider();
+			exchange.poolKey = exchange.principal == null
+				? PooledHTTPClientProvider.getKey(uri)
+				: exchange.pool.getKey(uri, exchange.principal.getName(), exchange.principal.getPassword(), exchange.connectionBound);
+			// we don't wait for a connection beyond the deadline
+			long remaining = exchange.getRemaining();
+			exchange.client = exchange.pool.lease(exchange.poolKey, exchange.transactionId, Math.min(remaining, exchange.pool.getLeaseTimeout()));
+			if (exchange.client == null) {
+				if (remaining < exchange.pool.getLeaseTimeout()) {
+					exchange.timedOut = true;
+					throw exchange.newTimeout(null);
+				}
+				throw new ServiceException("SOAP-3", "No connection available for: " + exchange.poolKey);
+			}
 		}
-		catch (ParseException e) {
-			throw new ServiceException(e);
+		else {
+			exchange.client = getDefinition().getHttpClientProvider().newHTTPClient(exchange.transactionId);
 		}
-		catch (URISyntaxException e) {
-			throw new ServiceException(e);
+		StreamedInput streamed = exchange.streamed;
+		PlainMimeContentPart content = new PlainMimeContentPart(null, streamed == null ? exchange.buffer : streamed.getReadable(),
+			streamed == null 
+				? new MimeHeader("Content-Length", new Long(exchange.buffer.remainingData()).toString())
+				: new MimeHeader("Transfer-Encoding", "chunked"),
+			new MimeHeader("Content-Type", (getDefinition().getOperation().getDefinition().getSoapVersion() == 1.2 ? "application/soap+xml" : "text/xml") + "; charset=" + getDefinition().getCharset().displayName().toLowerCase()),
+			new MimeHeader("Host", uri.getAuthority())
+		);
+		// this should be ok because the buffer is a DynamicByteBuffer which is resettable
+		// a streamed request can only be sent once
+		content.setReopenable(streamed == null);
+		
+		if (getDefinition().getOperation().getSoapAction() != null) {
+			content.setHeader(new MimeHeader("SOAPAction", "\"" + getDefinition().getOperation().getSoapAction() + "\""));
 		}
-	}
-
-	private ComplexType buildRequestEnvelope(boolean isInput) {
-		Structure envelope = new Structure();
-		envelope.setName("Envelope");
-		envelope.setProperty(new ValueImpl<Boolean>(new AttributeQualifiedDefaultProperty(), false));
-		envelope.setProperty(new ValueImpl<Boolean>(new ElementQualifiedDefaultProperty(), true));
-		if (getDefinition().getOperation().getDefinition().getSoapVersion() == 1.2) {
-			envelope.setNamespace("http://www.w3.org/2003/05/soap-envelope");
-		}
-		// default is 1.1
-		else {
-			envelope.setNamespace("http://schemas.xmlsoap.org/soap/envelope/");
+		
+		BasicPrincipal principal = exchange.principal;
+		long started = exchange.start();
+		if (definition.getPreemptiveAuthorizationType() != null && principal != null) {
+			switch(definition.getPreemptiveAuthorizationType()) {
+				case BASIC:
+					content.setHeader(new MimeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, new BasicAuthentication().authenticate(principal, "basic")));
+				break;
+				case BEARER:
+					content.setHeader(new MimeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, "Bearer " + exchange.token));
+				break;
+			}
 		}
-		Structure header = new Structure();
-		header.setName("Header");
-		envelope.add(new ComplexElementImpl(header, envelope, new ValueImpl<Integer>(new MinOccursProperty(), 0)));
 		
+		exchange.stop(InvocationPhase.AUTHENTICATION, started);
 		
-		Structure body = new Structure();
-		body.setName("Body");
-		body.setNamespace(envelope.getNamespace());
-		if (isInput) {
-			// check if we have extensions in place
-			if (definition.getExtensions() != null) {
-				for (WSExtension extension : definition.getExtensions()) {
-					extension.addDefinition(definition, envelope);
+		started = System.nanoTime();
+		exchange.response = exchange.client.execute(
+			new DefaultHTTPRequest("POST", definition.isUseFullPathTarget() ? uri.toString() : uri.getPath(), content), 
+			principal, 
+			exchange.endpoint.startsWith("https"), 
+			true
+		);
+		exchange.latency = System.nanoTime() - started;
+		exchange.stop(InvocationPhase.TRANSPORT, started);
+		if (exchange.response != null) {
+			exchange.status = exchange.response.getCode();
+		}
+		if (streamed != null) {
+			streamed.checkFailure();
+		}
+		return exchange;
+	}
+	
+	ComplexContent handle(WSDLExchange exchange) throws ServiceException, IOException, ParseException {
+		exchange.checkDeadline();
+		HTTPResponse httpResponse = exchange.response;
+		if ((httpResponse.getCode() >= 200 && httpResponse.getCode() < 300) || (getDefinition().getAllowedHttpCodes() != null && getDefinition().getAllowedHttpCodes().contains(httpResponse.getCode()))) {
+			ContentPart contentPart;
+			if (httpResponse.getContent() instanceof ContentPart) {
+				contentPart = (ContentPart) httpResponse.getContent();
+			}
+			else if (httpResponse.getContent() instanceof MultiPart) {
+				contentPart = (ContentPart) ((MultiPart) httpResponse.getContent()).getChild("part0");
+			}
+			else {
+				throw new IllegalStateException("Could not find content part for response");
+			}
+			long started = exchange.start();
+			InputStream content;
+			List<Window> windows = definition.getWindows();
+			// windowed content is only read when it is accessed, by then a pooled client is serving other calls so the response is spilled to disk while we still hold it
+			if (exchange.pool != null && windows != null && !windows.isEmpty()) {
+				ReadableContainer<ByteBuffer> readable = contentPart.getReadable();
+				try {
+					content = spill(IOUtils.toInputStream(readable));
+				}
+				finally {
+					readable.close();
 				}
 			}
-			
-			// check if we have a header piece
-			if (definition.getOperation().getInputPartLayout() != null && definition.getOperation().getInputPartLayout().getHeader() != null && definition.getOperation().getInputPartLayout().getHeader().getParts() != null
-					&& !definition.getOperation().getInputPartLayout().getHeader().getParts().isEmpty()) {
-				// should only be one
-				for (MessagePart part : definition.getOperation().getInputPartLayout().getHeader().getParts()) {
-					header.add(TypeBaseUtils.clone(part.getElement(), header));
+			else {
+				content = IOUtils.toInputStream(contentPart.getReadable());
+			}
+			ComplexContent response;
+			if (exchange.timings != null) {
+				CountingInputStream counter = new CountingInputStream(content);
+				response = parseOutput(counter, getDefinition().getCharset());
+				exchange.responseBytes = counter.getCount();
+			}
+			else {
+				response = parseOutput(content, getDefinition().getCharset());
+			}
+			started = elapsed(exchange.timings, InvocationPhase.PARSE, started);
+			exchange.checkDeadline();
+			ComplexContent output = getDefinition().getServiceInterface().getOutputDefinition().newInstance();
+			if (definition.isBackwardsCompatible()) {
+				if (getDefinition().getOperation().getOperation().getOutput() != null && !getDefinition().getOperation().getOperation().getOutput().getParts().isEmpty()) {
+					output.set("response", ((ComplexContent) response.get("Body")).get(getDefinition().getOperation().getOperation().getOutput().getParts().get(0).getElement().getName()));
+				}
+				if (getDefinition().getOperation().getOperation().getFaults() != null && !getDefinition().getOperation().getOperation().getFaults().isEmpty() && !getDefinition().getOperation().getOperation().getFaults().get(0).getParts().isEmpty()) {
+					output.set("fault", ((ComplexContent) response.get("Body")).get(getDefinition().getOperation().getOperation().getFaults().get(0).getParts().get(0).getElement().getName()));
 				}
 			}
-			
-			if (getDefinition().getOperation().getInputPartLayout() != null && getDefinition().getOperation().getInputPartLayout().getBody() != null) {
-				List<MessagePart> parts = getDefinition().getOperation().getInputPartLayout().getBody().getParts();
-				if (parts != null && !parts.isEmpty()) {
-					for (MessagePart part : parts) {
-						body.add(TypeBaseUtils.clone(part.getElement(), header));
+			else if (getDefinition().getOperation().getOutputPartLayout() != null) {
+				BindingOperationMessage body = getDefinition().getOperation().getOutputPartLayout().getBody();
+				if (body != null && body.getParts() != null && !body.getParts().isEmpty()) {
+					for (MessagePart part : body.getParts()) {
+						output.set("body/" + part.getElement().getName(), response.get("Body/" + part.getElement().getName()));
+					}
+				}
+				BindingOperationMessage header = getDefinition().getOperation().getOutputPartLayout().getHeader();
+				if (header != null && header.getParts() != null && !header.getParts().isEmpty()) {
+					for (MessagePart part : header.getParts()) {
+						output.set("header/" + part.getElement().getName(), response.get("Header/" + part.getElement().getName()));
+					}
+				}
+				if (getDefinition().getOperation().getFaults() != null) {
+					for (BindingOperationMessage message : getDefinition().getOperation().getFaults()) {
+						if (message.getParts() != null) {
+							for (MessagePart part : message.getParts()) {
+								output.set("fault/" + part.getElement().getName(), response.get("Body/" + part.getElement().getName()));
+							}		
+						}
 					}
 				}
 			}
+			exchange.stop(InvocationPhase.MAPPING, started);
+			exchange.fault = exchange.timings != null && hasFault(output);
+			exchange.reusable = true;
+			return output;
 		}
 		else {
-			// check if we have a header piece
-			if (definition.getOperation().getOutputPartLayout() != null && definition.getOperation().getOutputPartLayout().getHeader() != null && definition.getOperation().getOutputPartLayout().getHeader().getParts() != null
-					&& !definition.getOperation().getOutputPartLayout().getHeader().getParts().isEmpty()) {
-				// should only be one
-				for (MessagePart part : definition.getOperation().getOutputPartLayout().getHeader().getParts()) {
-					header.add(TypeBaseUtils.clone(part.getElement(), header));
-				}
+			byte[] bytes = null;
+			ContentPart contentPart = null;
+			if (httpResponse.getContent() instanceof ContentPart) {
+				contentPart = (ContentPart) httpResponse.getContent();
+			}
+			else if (httpResponse.getContent() instanceof MultiPart) {
+				contentPart = (ContentPart) ((MultiPart) httpResponse.getContent()).getChild("part0");
 			}
-			
-			if (getDefinition().getOperation().getOutputPartLayout() != null && getDefinition().getOperation().getOutputPartLayout().getBody() != null) {
-				List<MessagePart> parts = getDefinition().getOperation().getOutputPartLayout().getBody().getParts();
-				if (parts != null && !parts.isEmpty()) {
-					for (MessagePart part : parts) {
-						body.add(TypeBaseUtils.clone(part.getElement(), header));
+			if (contentPart != null) {
+				ReadableContainer<ByteBuffer> readable = contentPart.getReadable();
+				if (readable != null) {
+					try {
+						bytes = IOUtils.toBytes(readable);
 					}
-				}
-				List<BindingOperationMessage> faults = getDefinition().getOperation().getFaults();
-				if (faults != null && !faults.isEmpty()) {
-					for (BindingOperationMessage fault : faults) {
-						List<MessagePart> faultParts = fault.getParts();
-						if (faultParts != null && !faultParts.isEmpty()) {
-							for (MessagePart faultPart : faultParts) {
-								body.add(TypeBaseUtils.clone(faultPart.getElement(), header));								
-							}
-						}
+					finally {
+						readable.close();
 					}
 				}
 			}
+			if (bytes != null) {
+				exchange.responseBytes = bytes.length;
+				if (definition.getRetryPolicy() != null) {
+					exchange.faultCode = RetryPolicy.getFaultCode(new String(bytes, getDefinition().getCharset()));
+				}
+			}
+			exchange.reusable = true;
+			throw new ServiceException("SOAP-2", "HTTP Exception [" + httpResponse.getCode() + "] " + httpResponse.getMessage() + (bytes == null ? "" : "\n" + new String(bytes)), httpResponse.getCode(), httpResponse.getMessage());
+		}
+	}
+	
+	/**
+	 * Copies the content to a temporary file and returns a stream on that file, the file is removed when the stream is closed.
+	 * Where the file system allows it, the file is unlinked immediately and only lives as long as the open stream.
+	 */
+	private static InputStream spill(InputStream input) throws IOException {
+		final File file = File.createTempFile("soap-response-", ".xml");
+		try {
+			OutputStream output = new FileOutputStream(file);
+			try {
+				byte [] buffer = new byte[8192];
+				int read;
+				while ((read = input.read(buffer)) >= 0) {
+					output.write(buffer, 0, read);
+				}
+			}
+			finally {
+				output.close();
+			}
+			InputStream spilled = new FilterInputStream(new BufferedInputStream(new FileInputStream(file))) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						file.delete();
+					}
+				}
+			};
+			file.delete();
+			return spilled;
 		}
-		envelope.add(new ComplexElementImpl(body, envelope));
-		return envelope;
+		catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+	}
+	
+	private static ServiceException wrap(Exception e) {
+		if (e instanceof ServiceException) {
+			return (ServiceException) e;
+		}
+		return new ServiceException(e);
+	}
+	
+	private static <T> CompletableFuture<T> failed(ServiceException exception) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(new CompletionException(exception));
+		return future;
 	}
 	
+	static Throwable unwrap(Throwable exception) {
+		return exception instanceof CompletionException && exception.getCause() != null ? exception.getCause() : exception;
+	}
+	
+	static <T> T stage(Stage<T> stage) {
+		try {
+			return stage.run();
+		}
+		catch (Exception e) {
+			throw new CompletionException(wrap(e));
+		}
+	}
+	
+	interface Stage<T> {
+		public T run() throws Exception;
+	}
 }
@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.api;
+
+public enum InvocationPhase {
+	// building the envelope instance from the input
+	ENVELOPE,
+	// serializing the envelope to xml
+	MARSHAL,
+	// security headers, principals and preemptive authorization
+	AUTHENTICATION,
+	// the http round trip, for streamed requests this includes marshalling
+	TRANSPORT,
+	// deserializing the response envelope
+	PARSE,
+	// copying the response envelope to the output of the service
+	MAPPING
+}
@@ -0,0 +1,58 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.api;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * An extension that does its per-service work once: the state is prepared when the service first needs it and kept until the service is invalidated (for example when the extensions change).
+ * The state must be immutable as it is shared by all concurrent calls.
+ * 
+ * If the extension can write its header content directly, the service can keep using the prerendered envelope instead of building and marshalling the full envelope for each call.
+ */
+public interface WSCompiledExtension<S> extends WSExtension {
+	
+	public S prepare(WSDLService service);
+	
+	/**
+	 * Used when the envelope is built as a whole, by default this is the same as the stateless method
+	 */
+	public default void addInstance(S state, WSDLService service, ComplexContent envelope, ComplexContent serviceInput, Value<?>...values) {
+		addInstance(service, envelope, serviceInput, values);
+	}
+	
+	/**
+	 * Whether writeHeader is supported for this state, if not the envelope is built as a whole for each call
+	 */
+	public default boolean canWriteHeader(S state) {
+		return false;
+	}
+	
+	/**
+	 * Write the header elements (not the soap header itself) in the charset of the writer, the extension has to declare the namespaces it uses.
+	 * It must write the same content as addInstance would add to the envelope. It is only called if canWriteHeader returns true for the state.
+	 */
+	public default void writeHeader(S state, WSDLService service, ComplexContent serviceInput, Writer writer) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,39 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.api;
+
+import be.nabu.libs.services.wsdl.WSDLService;
+
+/**
+ * The measurements of a single invocation, only valid during the callback of the listener.
+ */
+public interface WSInvocation {
+	public WSDLService getService();
+	// can be null if the endpoint could not be resolved
+	public String getEndpoint();
+	public long getDuration(InvocationPhase phase);
+	public long getTotalDuration();
+	// -1 if not known
+	public long getRequestBytes();
+	public long getResponseBytes();
+	// 0 if no response was received
+	public int getStatus();
+	// whether the output contains a soap fault
+	public boolean isFault();
+	public Throwable getException();
+}
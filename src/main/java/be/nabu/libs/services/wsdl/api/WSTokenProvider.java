@@ -0,0 +1,37 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.api;
+
+import java.io.IOException;
+
+import be.nabu.libs.services.wsdl.WSDLService;
+
+/**
+ * Provides the bearer token for preemptive BEARER authorization, the username and password are the credentials that the token is requested for.
+ * This is called for every request so implementations should cache.
+ */
+public interface WSTokenProvider {
+	public String getToken(WSDLService service, String username, String password) throws IOException;
+	
+	/**
+	 * Waits at most the timeout (in ms) for a token, providers that can not bound the wait ignore it
+	 */
+	public default String getToken(WSDLService service, String username, String password, long timeout) throws IOException {
+		return getToken(service, username, password);
+	}
+}
@@ -0,0 +1,251 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.auth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import be.nabu.libs.services.wsdl.DigestUtils;
+import be.nabu.libs.services.wsdl.WSDLExecutors;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.api.WSTokenProvider;
+
+/**
+ * Caches the tokens of a source per credential.
+ * Once a token is close to expiring it is refreshed in the background while callers keep using the cached one, callers only wait if there is no valid token at all.
+ * There is at most one fetch per credential at any time, concurrent callers share it.
+ * After a failed fetch, callers without a valid token get the failure until the retry backoff has passed, they do not all start a fetch of their own.
+ * 
+ * Credentials whose token has expired are evicted once the amount of cached credentials exceeds the maximum, if that is not enough the least recently used ones go.
+ */
+public class CachedTokenProvider implements WSTokenProvider {
+
+	private final TokenSource source;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong(), fetches = new AtomicLong(), failures = new AtomicLong();
+	private Executor executor;
+	// how long before the expiration the token is refreshed, capped at half the lifetime of the token
+	private long refreshAhead = 30000;
+	// how long (in ms) after a failed fetch we wait before trying again
+	private long retryBackoff = 1000;
+	private int maxEntries = 10000;
+	
+	public CachedTokenProvider(TokenSource source) {
+		this.source = source;
+	}
+
+	@Override
+	public String getToken(WSDLService service, String username, String password) throws IOException {
+		return getToken(service, username, password, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * If no token arrives within the timeout, an {@link InterruptedIOException} is thrown, the fetch itself goes on for the callers that come after
+	 */
+	@Override
+	public String getToken(WSDLService service, String username, String password, long timeout) throws IOException {
+		Entry entry = getEntry(getKey(username, password));
+		IssuedToken token = entry.token;
+		long now = System.currentTimeMillis();
+		entry.lastUsed = now;
+		if (token != null && now < token.getExpires()) {
+			hits.incrementAndGet();
+			if (now >= entry.refreshAt && now >= entry.retryAt) {
+				refresh(entry, username, password);
+			}
+			return token.getValue();
+		}
+		Throwable failure = entry.failure;
+		if (failure != null && now < entry.retryAt && entry.refreshing.get() == null) {
+			throw toIOException(failure);
+		}
+		try {
+			return refresh(entry, username, password).get(Math.max(0, timeout), TimeUnit.MILLISECONDS).getValue();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a token", e);
+		}
+		catch (TimeoutException e) {
+			throw new InterruptedIOException("No token received within " + timeout + "ms");
+		}
+		catch (ExecutionException e) {
+			throw toIOException(e.getCause());
+		}
+	}
+	
+	private Entry getEntry(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			if (entries.size() >= maxEntries) {
+				evict();
+			}
+			entry = entries.computeIfAbsent(key, value -> new Entry());
+		}
+		return entry;
+	}
+	
+	/**
+	 * Drops the credentials whose token has expired, if that does not bring us under the maximum the least recently used ones go as well
+	 */
+	public void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next().getValue();
+			if (entry.refreshing.get() == null && (entry.token == null || entry.token.getExpires() <= now)) {
+				iterator.remove();
+			}
+		}
+		int excess = entries.size() - maxEntries + 1;
+		if (excess > 0) {
+			List<Map.Entry<String, Entry>> used = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+			Collections.sort(used, (first, second) -> Long.compare(first.getValue().lastUsed, second.getValue().lastUsed));
+			for (int i = 0; i < excess && i < used.size(); i++) {
+				entries.remove(used.get(i).getKey(), used.get(i).getValue());
+			}
+		}
+	}
+	
+	private static IOException toIOException(Throwable exception) {
+		return exception instanceof IOException ? (IOException) exception : new IOException("Could not fetch a token", exception);
+	}
+	
+	private CompletableFuture<IssuedToken> refresh(final Entry entry, final String username, final String password) {
+		while (true) {
+			CompletableFuture<IssuedToken> running = entry.refreshing.get();
+			if (running != null) {
+				return running;
+			}
+			final CompletableFuture<IssuedToken> future = new CompletableFuture<IssuedToken>();
+			if (entry.refreshing.compareAndSet(null, future)) {
+				fetches.incrementAndGet();
+				getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							IssuedToken token = source.fetch(username, password);
+							long lifetime = token.getExpires() - token.getIssued();
+							entry.refreshAt = token.getExpires() - Math.min(refreshAhead, lifetime / 2);
+							entry.token = token;
+							entry.failure = null;
+							future.complete(token);
+						}
+						catch (Throwable e) {
+							failures.incrementAndGet();
+							entry.failure = e;
+							entry.retryAt = System.currentTimeMillis() + retryBackoff;
+							future.completeExceptionally(e);
+						}
+						finally {
+							entry.refreshing.compareAndSet(future, null);
+						}
+					}
+				});
+				return future;
+			}
+		}
+	}
+	
+	/**
+	 * The password is hashed so it is not kept in memory as part of the key
+	 */
+	private static String getKey(String username, String password) {
+		StringBuilder builder = new StringBuilder(username == null ? "" : username).append(':');
+		if (password != null) {
+			builder.append(DigestUtils.toHex(DigestUtils.sha256(password)));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Drops all cached tokens, running fetches are not interrupted
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	public Executor getExecutor() {
+		return executor == null ? WSDLExecutors.getDefaultExecutor() : executor;
+	}
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	/**
+	 * The amount of credentials for which a token is cached
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+
+	public long getRefreshAhead() {
+		return refreshAhead;
+	}
+	public void setRefreshAhead(long refreshAhead) {
+		this.refreshAhead = refreshAhead;
+	}
+	
+	/**
+	 * The amount of calls that were served from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	public long getFetches() {
+		return fetches.get();
+	}
+	public long getFailures() {
+		return failures.get();
+	}
+	
+	private static class Entry {
+		private volatile IssuedToken token;
+		private volatile long refreshAt, retryAt, lastUsed;
+		private volatile Throwable failure;
+		private final AtomicReference<CompletableFuture<IssuedToken>> refreshing = new AtomicReference<CompletableFuture<IssuedToken>>();
+	}
+}
@@ -0,0 +1,178 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.auth;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.nabu.libs.authentication.api.principals.BasicPrincipal;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.http.client.BasicAuthentication;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.HTTPUtils;
+import be.nabu.libs.services.wsdl.HTTPClientProvider;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.impl.FormatException;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Fetches tokens from an oauth2 token endpoint.
+ * With the client_credentials grant (the default) the username and password are the client id and secret, with the password grant they are sent as the resource owner credentials and the client is configured separately.
+ */
+public class HTTPTokenSource implements TokenSource {
+
+	private static final Pattern ACCESS_TOKEN = Pattern.compile("\"access_token\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern EXPIRES_IN = Pattern.compile("\"expires_in\"\\s*:\\s*\"?([0-9]+)");
+	
+	private final HTTPClientProvider provider;
+	private final URI endpoint;
+	private String grantType = "client_credentials", scope, clientId, clientSecret;
+	// used if the endpoint does not return an expiration
+	private long defaultLifetime = 300000;
+	
+	public HTTPTokenSource(HTTPClientProvider provider, URI endpoint) {
+		this.provider = provider;
+		this.endpoint = endpoint;
+	}
+	
+	@Override
+	public IssuedToken fetch(String username, String password) throws IOException {
+		StringBuilder form = new StringBuilder("grant_type=").append(encode(grantType));
+		final String clientId, clientSecret;
+		if ("password".equals(grantType)) {
+			form.append("&username=").append(encode(username)).append("&password=").append(encode(password));
+			clientId = this.clientId;
+			clientSecret = this.clientSecret;
+		}
+		else {
+			clientId = username;
+			clientSecret = password;
+		}
+		if (scope != null) {
+			form.append("&scope=").append(encode(scope));
+		}
+		byte [] bytes = form.toString().getBytes(StandardCharsets.UTF_8);
+		PlainMimeContentPart content = new PlainMimeContentPart(null, IOUtils.wrap(bytes, true),
+			new MimeHeader("Content-Length", Integer.toString(bytes.length)),
+			new MimeHeader("Content-Type", "application/x-www-form-urlencoded"),
+			new MimeHeader("Accept", "application/json"),
+			new MimeHeader("Host", endpoint.getAuthority())
+		);
+		content.setReopenable(true);
+		if (clientId != null) {
+			content.setHeader(new MimeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, new BasicAuthentication().authenticate(new BasicPrincipal() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				public String getName() {
+					return clientId;
+				}
+				@Override
+				public String getPassword() {
+					return clientSecret;
+				}
+			}, "basic")));
+		}
+		HTTPClient client = provider.newHTTPClient(null);
+		long issued = System.currentTimeMillis();
+		HTTPResponse response;
+		try {
+			response = client.execute(new DefaultHTTPRequest("POST", endpoint.getPath(), content), null, endpoint.getScheme().equals("https"), true);
+		}
+		catch (FormatException e) {
+			throw new IOException(e);
+		}
+		catch (ParseException e) {
+			throw new IOException(e);
+		}
+		String body = null;
+		if (response.getContent() instanceof ContentPart) {
+			ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+			if (readable != null) {
+				try {
+					body = new String(IOUtils.toBytes(readable), StandardCharsets.UTF_8);
+				}
+				finally {
+					readable.close();
+				}
+			}
+		}
+		if (response.getCode() < 200 || response.getCode() >= 300) {
+			throw new IOException("Token endpoint returned [" + response.getCode() + "] " + response.getMessage() + (body == null ? "" : "\n" + body));
+		}
+		Matcher matcher = body == null ? null : ACCESS_TOKEN.matcher(body);
+		if (matcher == null || !matcher.find()) {
+			throw new IOException("No access token found in the response of the token endpoint");
+		}
+		String token = matcher.group(1);
+		matcher = EXPIRES_IN.matcher(body);
+		long lifetime = matcher.find() ? Long.parseLong(matcher.group(1)) * 1000 : defaultLifetime;
+		return new IssuedToken(token, issued, issued + lifetime);
+	}
+	
+	private static String encode(String value) throws IOException {
+		return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+	}
+
+	public String getGrantType() {
+		return grantType;
+	}
+	public void setGrantType(String grantType) {
+		this.grantType = grantType;
+	}
+
+	public String getScope() {
+		return scope;
+	}
+	public void setScope(String scope) {
+		this.scope = scope;
+	}
+
+	/**
+	 * The client credentials for the password grant
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+
+	public String getClientSecret() {
+		return clientSecret;
+	}
+	public void setClientSecret(String clientSecret) {
+		this.clientSecret = clientSecret;
+	}
+
+	public long getDefaultLifetime() {
+		return defaultLifetime;
+	}
+	public void setDefaultLifetime(long defaultLifetime) {
+		this.defaultLifetime = defaultLifetime;
+	}
+}
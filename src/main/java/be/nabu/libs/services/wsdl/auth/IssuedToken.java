@@ -0,0 +1,43 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.auth;
+
+/**
+ * A token as it was issued, the expiration is an absolute timestamp in milliseconds.
+ */
+public class IssuedToken {
+
+	private final String value;
+	private final long issued, expires;
+
+	public IssuedToken(String value, long issued, long expires) {
+		this.value = value;
+		this.issued = issued;
+		this.expires = expires;
+	}
+
+	public String getValue() {
+		return value;
+	}
+	public long getIssued() {
+		return issued;
+	}
+	public long getExpires() {
+		return expires;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single endpoint in a pool with the passively gathered state that is used to select it: the requests in flight, the latency and the health.
+ */
+public class Endpoint {
+
+	private final String url;
+	private final AtomicInteger outstanding = new AtomicInteger(), consecutiveFailures = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong(), failures = new AtomicLong();
+	// exponentially weighted moving average of the latency in nanoseconds (the bits of the double), 0 as long as nothing was measured
+	private final AtomicLong latency = new AtomicLong();
+	private volatile long quarantinedUntil;
+
+	Endpoint(String url) {
+		this.url = url;
+	}
+
+	void begin() {
+		outstanding.incrementAndGet();
+		requests.incrementAndGet();
+	}
+	
+	void succeeded(long duration, double decay) {
+		outstanding.decrementAndGet();
+		consecutiveFailures.set(0);
+		quarantinedUntil = 0;
+		measure(duration, decay);
+	}
+	
+	void failed(long duration, double decay, int threshold, long quarantine) {
+		outstanding.decrementAndGet();
+		failures.incrementAndGet();
+		// once quarantined a single failure after the quarantine is enough to quarantine it again
+		if (consecutiveFailures.incrementAndGet() >= threshold) {
+			quarantinedUntil = System.currentTimeMillis() + quarantine;
+		}
+		measure(duration, decay);
+	}
+	
+	/**
+	 * The endpoint was not responsible for the outcome, only the in flight count is updated
+	 */
+	void abandoned() {
+		outstanding.decrementAndGet();
+	}
+	
+	private void measure(long duration, double decay) {
+		long bits, updated;
+		do {
+			bits = latency.get();
+			double current = Double.longBitsToDouble(bits);
+			updated = Double.doubleToRawLongBits(current == 0 ? duration : current + decay * (duration - current));
+		}
+		while (!latency.compareAndSet(bits, updated));
+	}
+	
+	public String getUrl() {
+		return url;
+	}
+
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * The moving average of the latency in nanoseconds
+	 */
+	public double getLatency() {
+		return Double.longBitsToDouble(latency.get());
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * An endpoint is unhealthy while it is quarantined after consecutive failures, once the quarantine is over it is tried again
+	 */
+	public boolean isHealthy() {
+		return quarantinedUntil < System.currentTimeMillis();
+	}
+
+	@Override
+	public String toString() {
+		return url;
+	}
+}
@@ -0,0 +1,214 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.wsdl.api.Binding;
+import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.api.Port;
+import be.nabu.libs.wsdl.api.Service;
+import be.nabu.libs.wsdl.api.WSDLDefinition;
+
+/**
+ * A set of equivalent endpoints (replicas or the ports of a wsdl) that requests are spread over.
+ * 
+ * The health is tracked passively: I/O failures and gateway errors (502, 503, 504) count as failures, after a number of consecutive failures the endpoint is quarantined.
+ * Quarantined endpoints are skipped unless nothing else is left.
+ * If the connection to an endpoint can not be established, the request is sent to another endpoint, there is no failover once the request may have reached the server.
+ */
+public class EndpointPool {
+
+	private final List<Endpoint> endpoints;
+	private EndpointSelector selector = new RoundRobinSelector();
+	private int failureThreshold = 3;
+	private long quarantine = 10000;
+	private double decay = 0.3;
+	// the maximum amount of endpoints a single request is sent to, 0 means all of them
+	private int maxAttempts;
+
+	public EndpointPool(Collection<String> urls) {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		// the same address can be published by multiple ports
+		for (String url : new LinkedHashSet<String>(urls)) {
+			endpoints.add(new Endpoint(url));
+		}
+		this.endpoints = Collections.unmodifiableList(endpoints);
+	}
+	
+	/**
+	 * The ports in the wsdl whose binding contains the operation, ports for other bindings may not support it at all
+	 */
+	public static EndpointPool fromOperation(BindingOperation operation) {
+		Set<String> urls = new LinkedHashSet<String>();
+		WSDLDefinition definition = operation.getDefinition();
+		if (definition.getServices() != null) {
+			for (Service service : definition.getServices()) {
+				if (service.getPorts() != null) {
+					for (Port port : service.getPorts()) {
+						Binding binding = port.getBinding();
+						if (port.getEndpoint() != null && binding != null && binding.getOperations() != null && binding.getOperations().contains(operation)) {
+							urls.add(port.getEndpoint());
+						}
+					}
+				}
+			}
+		}
+		return new EndpointPool(urls);
+	}
+	
+	/**
+	 * All the ports of all the services in the wsdl, regardless of the operations they support
+	 */
+	public static EndpointPool fromDefinition(WSDLDefinition definition) {
+		Set<String> urls = new LinkedHashSet<String>();
+		if (definition.getServices() != null) {
+			for (Service service : definition.getServices()) {
+				if (service.getPorts() != null) {
+					for (Port port : service.getPorts()) {
+						if (port.getEndpoint() != null) {
+							urls.add(port.getEndpoint());
+						}
+					}
+				}
+			}
+		}
+		return new EndpointPool(urls);
+	}
+	
+	/**
+	 * Selects an endpoint that is not in the exclusions, healthy endpoints are preferred.
+	 * Returns null if all the endpoints are excluded.
+	 */
+	public Endpoint select(Collection<Endpoint> exclude) {
+		List<Endpoint> healthy = new ArrayList<Endpoint>(endpoints.size());
+		List<Endpoint> available = new ArrayList<Endpoint>(endpoints.size());
+		for (Endpoint endpoint : endpoints) {
+			if (exclude == null || !exclude.contains(endpoint)) {
+				available.add(endpoint);
+				if (endpoint.isHealthy()) {
+					healthy.add(endpoint);
+				}
+			}
+		}
+		if (!healthy.isEmpty()) {
+			return selector.select(healthy);
+		}
+		return available.isEmpty() ? null : selector.select(available);
+	}
+	
+	/**
+	 * Must be called when a request is sent to the endpoint, it must be followed by exactly one call to {@link #end(Endpoint, long, int, Throwable)}
+	 */
+	public void begin(Endpoint endpoint) {
+		endpoint.begin();
+	}
+	
+	/**
+	 * Ends a request that was started with {@link #begin(Endpoint)}, the status is the http code of the response if there was one
+	 */
+	public void end(Endpoint endpoint, long duration, int status, Throwable exception) {
+		if (isFailure(exception, IOException.class) || status == 502 || status == 503 || status == 504) {
+			endpoint.failed(duration, decay, failureThreshold, quarantine);
+		}
+		else if (exception != null && status == 0) {
+			endpoint.abandoned();
+		}
+		else {
+			endpoint.succeeded(duration, decay);
+		}
+	}
+	
+	/**
+	 * Whether the exception indicates that the request never reached the endpoint, in which case it is safe to send it elsewhere
+	 */
+	public boolean isFailover(Throwable exception) {
+		return isFailure(exception, ConnectException.class, NoRouteToHostException.class, UnknownHostException.class);
+	}
+	
+	@SafeVarargs
+	private static boolean isFailure(Throwable exception, Class<? extends Throwable>...types) {
+		while (exception != null) {
+			for (Class<? extends Throwable> type : types) {
+				if (type.isInstance(exception)) {
+					return true;
+				}
+			}
+			exception = exception.getCause() == exception ? null : exception.getCause();
+		}
+		return false;
+	}
+	
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+	
+	public int size() {
+		return endpoints.size();
+	}
+
+	public EndpointSelector getSelector() {
+		return selector;
+	}
+	public void setSelector(EndpointSelector selector) {
+		this.selector = selector;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * How long (in ms) an endpoint is skipped after consecutive failures
+	 */
+	public long getQuarantine() {
+		return quarantine;
+	}
+	public void setQuarantine(long quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * The weight of a new sample in the moving average of the latency, between 0 and 1
+	 */
+	public double getDecay() {
+		return decay;
+	}
+	public void setDecay(double decay) {
+		this.decay = decay;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+}
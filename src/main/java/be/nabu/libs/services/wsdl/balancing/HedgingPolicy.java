@@ -0,0 +1,122 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.services.wsdl.metrics.LatencyWindow;
+
+/**
+ * If a request has not been answered within the delay, an identical request is sent to another endpoint and the first successful response wins.
+ * This trades a few extra requests for a lower tail latency, only set this on services that are safe to send twice (read-only operations).
+ * 
+ * The delay is either fixed or a percentile of the recent latency, the latter only kicks in once enough responses have been measured.
+ * Recent means the current and the previous window, so older measurements age out.
+ */
+public class HedgingPolicy {
+
+	private long delay = 100;
+	// the percentile (between 0 and 1) of the recent latency to use as delay, 0 means the fixed delay is always used
+	private double percentile;
+	private long minDelay = 1;
+	private int minSamples = 100;
+	
+	private final LatencyWindow latency = new LatencyWindow(60000);
+	private final AtomicLong hedges = new AtomicLong(), wins = new AtomicLong();
+	
+	/**
+	 * The delay in ms after which the request is hedged
+	 */
+	public long getEffectiveDelay() {
+		long measured = percentile > 0 ? this.latency.getPercentile(percentile, minSamples) : -1;
+		return measured < 0 ? delay : Math.max(minDelay, TimeUnit.NANOSECONDS.toMillis(measured));
+	}
+	
+	/**
+	 * Records the latency (in ns) of a successful response and whether it came from the hedged request
+	 */
+	public void record(long latency, boolean hedged) {
+		this.latency.record(latency);
+		if (hedged) {
+			wins.incrementAndGet();
+		}
+	}
+	
+	public void hedged() {
+		hedges.incrementAndGet();
+	}
+	
+	/**
+	 * The amount of hedged requests that were sent
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+	
+	/**
+	 * The amount of hedged requests that answered before the original request
+	 */
+	public long getWins() {
+		return wins.get();
+	}
+
+	/**
+	 * The fixed delay in ms
+	 */
+	public long getDelay() {
+		return delay;
+	}
+	public void setDelay(long delay) {
+		this.delay = delay;
+	}
+
+	public double getPercentile() {
+		return percentile;
+	}
+	public void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	/**
+	 * The lower bound (in ms) of the percentile based delay
+	 */
+	public long getMinDelay() {
+		return minDelay;
+	}
+	public void setMinDelay(long minDelay) {
+		this.minDelay = minDelay;
+	}
+
+	public int getMinSamples() {
+		return minSamples;
+	}
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * How long (in ms) the latency is measured before a new window is started
+	 */
+	public long getWindow() {
+		return latency.getWindow();
+	}
+	public void setWindow(long window) {
+		latency.setWindow(window);
+	}
+}
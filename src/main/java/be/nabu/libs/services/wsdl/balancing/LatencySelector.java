@@ -0,0 +1,45 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects the endpoint with the lowest expected wait: the moving average of its latency weighted by the requests it already has in flight.
+ * Endpoints that have not been measured yet are preferred so every endpoint gets a latency.
+ */
+public class LatencySelector implements EndpointSelector {
+
+	@Override
+	public Endpoint select(List<Endpoint> candidates) {
+		int size = candidates.size();
+		int offset = ThreadLocalRandom.current().nextInt(size);
+		Endpoint selected = null;
+		double best = 0;
+		for (int i = 0; i < size; i++) {
+			Endpoint candidate = candidates.get((offset + i) % size);
+			double score = candidate.getLatency() * (candidate.getOutstanding() + 1);
+			if (selected == null || score < best) {
+				selected = candidate;
+				best = score;
+			}
+		}
+		return selected;
+	}
+}
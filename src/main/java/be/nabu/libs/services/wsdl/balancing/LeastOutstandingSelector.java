@@ -0,0 +1,41 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects the endpoint with the least requests in flight, ties are broken randomly so idle endpoints share the load.
+ */
+public class LeastOutstandingSelector implements EndpointSelector {
+
+	@Override
+	public Endpoint select(List<Endpoint> candidates) {
+		int size = candidates.size();
+		int offset = ThreadLocalRandom.current().nextInt(size);
+		Endpoint selected = null;
+		for (int i = 0; i < size; i++) {
+			Endpoint candidate = candidates.get((offset + i) % size);
+			if (selected == null || candidate.getOutstanding() < selected.getOutstanding()) {
+				selected = candidate;
+			}
+		}
+		return selected;
+	}
+}
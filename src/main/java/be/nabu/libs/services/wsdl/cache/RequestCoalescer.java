@@ -0,0 +1,178 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.WSDLExecutors;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Identical requests that are in flight at the same time are only sent once, the other callers wait for and share the result of the first one.
+ * Unlike the response cache nothing is kept once the call is done.
+ * 
+ * The output is shared between the callers and must be treated as read-only, only set this on services that are safe to coalesce (read-only operations).
+ * 
+ * Callers that wait for another one still respect their own timeout, if it passes they fail with SOAP-7 while the call itself goes on for the others.
+ */
+public class RequestCoalescer {
+
+	private final ConcurrentMap<String, CompletableFuture<ComplexContent>> inFlight = new ConcurrentHashMap<String, CompletableFuture<ComplexContent>>();
+	private final AtomicLong leaders = new AtomicLong(), coalesced = new AtomicLong();
+	
+	public ComplexContent execute(String key, Call call) throws ServiceException {
+		return execute(key, call, 0);
+	}
+	
+	/**
+	 * The timeout (in ms) is how long this caller waits if another one is already sending the request, 0 means it waits until that call is done
+	 */
+	public ComplexContent execute(String key, Call call, long timeout) throws ServiceException {
+		CompletableFuture<ComplexContent> future = new CompletableFuture<ComplexContent>();
+		CompletableFuture<ComplexContent> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			try {
+				return timeout > 0 ? existing.get(timeout, TimeUnit.MILLISECONDS) : existing.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServiceException(e);
+			}
+			catch (TimeoutException e) {
+				throw newTimeout(timeout);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof ServiceException) {
+					throw (ServiceException) e.getCause();
+				}
+				else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				else if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw new ServiceException(e.getCause());
+			}
+		}
+		leaders.incrementAndGet();
+		try {
+			ComplexContent output = call.call();
+			future.complete(output);
+			return output;
+		}
+		// whatever happens, the callers waiting for us must be released
+		catch (Throwable e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(key, future);
+		}
+	}
+	
+	public CompletableFuture<ComplexContent> executeAsync(String key, Supplier<CompletableFuture<ComplexContent>> call) {
+		return executeAsync(key, call, 0);
+	}
+	
+	public CompletableFuture<ComplexContent> executeAsync(String key, Supplier<CompletableFuture<ComplexContent>> call, long timeout) {
+		return executeAsync(key, call, timeout, WSDLExecutors.getDefaultExecutor());
+	}
+	
+	/**
+	 * The timeout (in ms) is how long this caller waits if another one is already sending the request, 0 means it waits until that call is done.
+	 * A caller that times out is completed on the executor, not on the thread that keeps the time.
+	 */
+	public CompletableFuture<ComplexContent> executeAsync(String key, Supplier<CompletableFuture<ComplexContent>> call, long timeout, Executor executor) {
+		CompletableFuture<ComplexContent> future = new CompletableFuture<ComplexContent>();
+		CompletableFuture<ComplexContent> existing = inFlight.putIfAbsent(key, future);
+		if (existing == null) {
+			leaders.incrementAndGet();
+			CompletableFuture<ComplexContent> result;
+			try {
+				result = call.get();
+			}
+			catch (Throwable e) {
+				inFlight.remove(key, future);
+				future.completeExceptionally(e);
+				throw e;
+			}
+			result.whenComplete((output, exception) -> {
+				inFlight.remove(key, future);
+				if (exception == null) {
+					future.complete(output);
+				}
+				else {
+					future.completeExceptionally(exception);
+				}
+			});
+			// every caller gets its own dependent future so completing or cancelling it does not affect the others
+			return future.thenApply(output -> output);
+		}
+		coalesced.incrementAndGet();
+		CompletableFuture<ComplexContent> follower = existing.thenApply(output -> output);
+		if (timeout > 0) {
+			ScheduledFuture<?> timer = WSDLExecutors.getScheduler().schedule(() -> executor.execute(() -> {
+				follower.completeExceptionally(newTimeout(timeout));
+			}), timeout, TimeUnit.MILLISECONDS);
+			follower.whenComplete((output, exception) -> timer.cancel(false));
+		}
+		return follower;
+	}
+	
+	private static ServiceException newTimeout(long timeout) {
+		return new ServiceException("SOAP-7", "The coalesced call did not complete within " + timeout + "ms");
+	}
+	
+	/**
+	 * The number of requests that were actually sent
+	 */
+	public long getLeaders() {
+		return leaders.get();
+	}
+	
+	/**
+	 * The number of requests that shared the result of another one
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+	
+	public double getCoalescingRate() {
+		long coalesced = this.coalesced.get(), total = coalesced + leaders.get();
+		return total == 0 ? 0 : (double) coalesced / total;
+	}
+	
+	public int getInFlight() {
+		return inFlight.size();
+	}
+	
+	public interface Call {
+		public ComplexContent call() throws ServiceException;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.cache;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * A size bounded LRU cache of responses for read-only operations.
+ * The key is a hash of the marshalled header and body parts of the input (and the user), it does not include the endpoint or the transaction id.
+ * The same cache can be shared by all the services of a wsdl, only the operations that are marked as cacheable (by name or soap action) use it.
+ *
+ * Cached outputs are shared between callers and must be treated as read-only.
+ */
+public class ResponseCache {
+
+	private long timeToLive = 60000;
+	// how long faults are cached, 0 disables negative caching
+	private long faultTimeToLive = 0;
+	private int maxEntries = 10000;
+	private Set<String> cacheableOperations = new HashSet<String>();
+
+	private final Lock lock = new ReentrantLock();
+	private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+			if (size() > maxEntries) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), expirations = new AtomicLong();
+
+	public boolean isCacheable(WSDLService service) {
+		return cacheableOperations != null && (cacheableOperations.contains(service.getOperationName())
+			|| (service.getSoapAction() != null && cacheableOperations.contains(service.getSoapAction())));
+	}
+
+	public CachedResponse get(String key) {
+		lock.lock();
+		try {
+			CachedResponse response = entries.get(key);
+			if (response != null && response.getExpires() < System.currentTimeMillis()) {
+				entries.remove(key);
+				expirations.incrementAndGet();
+				response = null;
+			}
+			if (response == null) {
+				misses.incrementAndGet();
+			}
+			else {
+				hits.incrementAndGet();
+			}
+			return response;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Outputs that contain a fault are only cached if negative caching is enabled
+	 */
+	public void put(String key, ComplexContent output, boolean fault) {
+		long ttl = fault ? faultTimeToLive : timeToLive;
+		if (ttl > 0) {
+			put(key, new CachedResponse(output, null, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	public void putFault(String key, ServiceException exception) {
+		if (faultTimeToLive > 0) {
+			put(key, new CachedResponse(null, exception, System.currentTimeMillis() + faultTimeToLive));
+		}
+	}
+
+	private void put(String key, CachedResponse response) {
+		lock.lock();
+		try {
+			entries.put(key, response);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	public long getEvictions() {
+		return evictions.get();
+	}
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	public long getFaultTimeToLive() {
+		return faultTimeToLive;
+	}
+	public void setFaultTimeToLive(long faultTimeToLive) {
+		this.faultTimeToLive = faultTimeToLive;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * The names of the binding operations or their soap actions
+	 */
+	public Set<String> getCacheableOperations() {
+		return cacheableOperations;
+	}
+	public void setCacheableOperations(Set<String> cacheableOperations) {
+		this.cacheableOperations = cacheableOperations;
+	}
+
+	public static class CachedResponse {
+		private ComplexContent output;
+		private ServiceException exception;
+		private long expires;
+
+		CachedResponse(ComplexContent output, ServiceException exception, long expires) {
+			this.output = output;
+			this.exception = exception;
+			this.expires = expires;
+		}
+
+		public ComplexContent getOutput() {
+			return output;
+		}
+		public ServiceException getException() {
+			return exception;
+		}
+		public long getExpires() {
+			return expires;
+		}
+	}
+}
@@ -0,0 +1,483 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.CookieStore;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.http.client.DefaultHTTPClient;
+import be.nabu.libs.http.client.SPIAuthenticationHandler;
+import be.nabu.libs.http.client.connections.PlainConnectionHandler;
+import be.nabu.libs.http.core.CustomCookieStore;
+import be.nabu.libs.services.wsdl.DigestUtils;
+import be.nabu.libs.services.wsdl.HTTPClientProvider;
+
+/**
+ * Keeps http clients (and the connections they hold) alive between calls, grouped per endpoint.
+ * Share one instance between all the services generated from a wsdl so they use the same pools.
+ * When the clients are created with the same ssl context, TLS sessions are resumed rather than renegotiated.
+ * 
+ * Connection based authentication like NTLM authenticates the connection rather than the request, those clients are pooled per endpoint and principal.
+ * A client reused from such a pool already holds an authenticated connection so the handshake is skipped.
+ * 
+ * Clients keep cookies, which must not leak from one call to the next. The clients created by the pool itself have their cookies cleared when they are released.
+ * The state of clients created by a custom factory can not be reset, the calls that carry credentials are pooled per principal so a session never crosses principals.
+ * 
+ * A pool that has no idle clients left and no callers that hold or wait for one is removed, so pools per principal or session do not pile up.
+ */
+public class PooledHTTPClientProvider implements HTTPClientProvider {
+
+	private static final char AFFINITY_SEPARATOR = '#', SESSION_SEPARATOR = '|';
+	
+	private HTTPClientProvider factory;
+	private int maxConnectionsPerEndpoint = 20;
+	// how long an unused client is kept around
+	private long maxIdleTime = 60000;
+	// how long we wait for a client to become available
+	private long leaseTimeout = 30000;
+	private ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+	// the cookies of the clients we created ourselves, null if the clients come from a custom factory
+	private ConcurrentMap<HTTPClient, CookieStore> cookies;
+	private Lock lock = new ReentrantLock();
+	private AtomicLong handshakesAvoided = new AtomicLong();
+
+	/**
+	 * The factory is used to create the actual clients, the pool decides when to reuse them
+	 */
+	public PooledHTTPClientProvider(HTTPClientProvider factory) {
+		this.factory = factory;
+	}
+
+	public PooledHTTPClientProvider(final SSLContext context, final int connectionTimeout, final int socketTimeout) {
+		this.cookies = new ConcurrentHashMap<HTTPClient, CookieStore>();
+		this.factory = new HTTPClientProvider() {
+			@Override
+			public HTTPClient newHTTPClient(String transactionId) {
+				CookieStore store = new CustomCookieStore();
+				HTTPClient client = new DefaultHTTPClient(
+					new PlainConnectionHandler(context, connectionTimeout, socketTimeout),
+					new SPIAuthenticationHandler(),
+					new CookieManager(store, CookiePolicy.ACCEPT_ALL),
+					false
+				);
+				cookies.put(client, store);
+				return client;
+			}
+		};
+	}
+
+	/**
+	 * Callers that are not aware of the pool get a client of their own
+	 */
+	@Override
+	public HTTPClient newHTTPClient(String transactionId) {
+		return factory.newHTTPClient(transactionId);
+	}
+
+	public static String getKey(URI uri) {
+		return uri.getScheme() + "://" + uri.getAuthority();
+	}
+	
+	/**
+	 * The key for clients that are bound to a principal, the password is hashed so it does not end up in the key
+	 */
+	public static String getKey(URI uri, String username, String password) {
+		return getKey(uri, username, password, AFFINITY_SEPARATOR);
+	}
+	
+	private static String getKey(URI uri, String username, String password, char separator) {
+		StringBuilder builder = new StringBuilder(getKey(uri)).append(separator).append(username);
+		if (password != null) {
+			// the first 8 bytes are plenty to tell passwords apart
+			builder.append(':').append(DigestUtils.toHex(DigestUtils.sha256(password), 8));
+		}
+		return builder.toString();
+	}
+	
+	public static boolean isAffine(String key) {
+		return key.indexOf(AFFINITY_SEPARATOR) >= 0;
+	}
+	
+	/**
+	 * The key for a call that carries credentials, unlike {@link #getKey(URI, String, String)} the connection itself is not authenticated
+	 */
+	public static String getSessionKey(URI uri, String username, String password) {
+		return getKey(uri, username, password, SESSION_SEPARATOR);
+	}
+	
+	/**
+	 * Whether the pool resets the state (cookies) of a client when it is released, if not the clients can only be shared between calls of the same principal
+	 */
+	public boolean isClearingState() {
+		return cookies != null;
+	}
+	
+	/**
+	 * The key a call should lease from, taking into account whether its principal authenticates the connection
+	 */
+	public String getKey(URI uri, String username, String password, boolean connectionBound) {
+		if (connectionBound) {
+			return getKey(uri, username, password);
+		}
+		else if (username != null && !isClearingState()) {
+			return getSessionKey(uri, username, password);
+		}
+		return getKey(uri);
+	}
+
+	/**
+	 * Returns null if no client became available within the lease timeout
+	 */
+	public HTTPClient lease(String key, String transactionId) throws InterruptedException {
+		return lease(key, transactionId, leaseTimeout);
+	}
+	
+	/**
+	 * Returns null if no client became available within the given timeout (in ms)
+	 */
+	public HTTPClient lease(String key, String transactionId, long timeout) throws InterruptedException {
+		Pool pool = enter(key);
+		boolean acquired = false;
+		try {
+			acquired = pool.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+		}
+		finally {
+			if (!acquired) {
+				pool.users.decrementAndGet();
+			}
+		}
+		if (!acquired) {
+			pool.timeouts.incrementAndGet();
+			return null;
+		}
+		evict(pool);
+		Entry entry = pool.idle.pollFirst();
+		if (entry != null) {
+			pool.reused.incrementAndGet();
+			if (pool.affine) {
+				handshakesAvoided.incrementAndGet();
+			}
+			return entry.client;
+		}
+		try {
+			HTTPClient client = factory.newHTTPClient(transactionId);
+			pool.created.incrementAndGet();
+			return client;
+		}
+		catch (RuntimeException e) {
+			pool.permits.release();
+			pool.users.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * A client that was not used successfully (e.g. an exception while the response was still being read) should not be reused, its connection state is unknown
+	 */
+	public void release(String key, HTTPClient client, boolean reusable) {
+		Pool pool = pools.get(key);
+		// the client was not leased from us, we have no permit to give back
+		if (pool == null) {
+			close(client);
+			return;
+		}
+		try {
+			CookieStore store = cookies == null ? null : cookies.get(client);
+			if (store != null) {
+				store.removeAll();
+			}
+			if (reusable) {
+				pool.idle.offerFirst(new Entry(client));
+			}
+			else {
+				close(client);
+			}
+		}
+		finally {
+			pool.permits.release();
+			pool.users.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Evicts the clients that have been idle for too long, the pools that end up empty are removed.
+	 * This also happens whenever a pool is added for a new key.
+	 */
+	public void evictIdle() {
+		for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+			Pool pool = entry.getValue();
+			evict(pool);
+			if (pool.retire()) {
+				pools.remove(entry.getKey(), pool);
+				// a client that was released while we retired the pool has nowhere to go
+				Entry idle;
+				while ((idle = pool.idle.pollFirst()) != null) {
+					close(idle.client);
+				}
+			}
+		}
+	}
+
+	public Set<String> getEndpoints() {
+		return Collections.unmodifiableSet(pools.keySet());
+	}
+
+	public PoolStatistics getStatistics(String key) {
+		Pool pool = pools.get(key);
+		return pool == null ? null : new PoolStatistics(
+			pool.size - pool.permits.availablePermits(),
+			pool.idle.size(),
+			pool.permits.getQueueLength(),
+			pool.created.get(),
+			pool.reused.get(),
+			pool.evicted.get(),
+			pool.timeouts.get()
+		);
+	}
+
+	private void evict(Pool pool) {
+		long threshold = System.currentTimeMillis() - maxIdleTime;
+		// the most recently used clients are at the start, the stale ones at the end
+		Iterator<Entry> iterator = pool.idle.descendingIterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.lastUsed >= threshold) {
+				break;
+			}
+			if (pool.idle.removeLastOccurrence(entry)) {
+				pool.evicted.incrementAndGet();
+				close(entry.client);
+			}
+		}
+	}
+
+	/**
+	 * Gets the pool for the key and registers the caller as a user, the pool is not removed until the caller is done with it
+	 */
+	private Pool enter(String key) {
+		while (true) {
+			Pool pool = pools.get(key);
+			if (pool == null) {
+				Pool created;
+				// a pool created while the limit changes must not miss the new limit
+				lock.lock();
+				try {
+					created = new Pool(maxConnectionsPerEndpoint, isAffine(key));
+					// we are its first user, otherwise the clean up below could retire it before we get to use it
+					created.users.set(1);
+					pool = pools.putIfAbsent(key, created);
+				}
+				finally {
+					lock.unlock();
+				}
+				if (pool == null) {
+					// new keys are what makes the map grow, so that is when we clean up
+					evictIdle();
+					return created;
+				}
+			}
+			if (pool.enter()) {
+				return pool;
+			}
+			// retired in the meantime, it is (being) removed so we try again with a new one
+			pools.remove(key, pool);
+		}
+	}
+
+	private void close(HTTPClient client) {
+		if (cookies != null) {
+			cookies.remove(client);
+		}
+		if (client instanceof Closeable) {
+			try {
+				((Closeable) client).close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * The amount of times a client with an authenticated connection was reused instead of authenticating a new one
+	 */
+	public long getHandshakesAvoided() {
+		return handshakesAvoided.get();
+	}
+
+	public int getMaxConnectionsPerEndpoint() {
+		return maxConnectionsPerEndpoint;
+	}
+	/**
+	 * Also applies to the endpoints that are already in use, when lowered the clients that are leased are not taken away but no new ones are handed out until enough have been released.
+	 * Clients bound to a principal have a separate limit per principal.
+	 */
+	public void setMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint) {
+		lock.lock();
+		try {
+			this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+			for (Pool pool : pools.values()) {
+				pool.resize(maxConnectionsPerEndpoint);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public long getLeaseTimeout() {
+		return leaseTimeout;
+	}
+	public void setLeaseTimeout(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+
+	private static class Pool {
+		private Permits permits;
+		private volatile int size;
+		private boolean affine;
+		private ConcurrentLinkedDeque<Entry> idle = new ConcurrentLinkedDeque<Entry>();
+		// the callers that hold or wait for a client, -1 once the pool is retired
+		private AtomicInteger users = new AtomicInteger();
+		private AtomicLong created = new AtomicLong(), reused = new AtomicLong(), evicted = new AtomicLong(), timeouts = new AtomicLong();
+
+		private Pool(int size, boolean affine) {
+			this.permits = new Permits(size);
+			this.size = size;
+			this.affine = affine;
+		}
+		
+		private boolean enter() {
+			while (true) {
+				int current = users.get();
+				if (current < 0) {
+					return false;
+				}
+				if (users.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+		
+		private boolean retire() {
+			return idle.isEmpty() && users.compareAndSet(0, -1);
+		}
+		
+		private void resize(int size) {
+			if (size > this.size) {
+				permits.release(size - this.size);
+			}
+			else if (size < this.size) {
+				// the available permits can go negative, they recover as leased clients are released
+				permits.reducePermits(this.size - size);
+			}
+			this.size = size;
+		}
+	}
+	
+	private static class Permits extends Semaphore {
+		private static final long serialVersionUID = 1L;
+		
+		private Permits(int permits) {
+			super(permits, true);
+		}
+		
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+
+	private static class Entry {
+		private HTTPClient client;
+		private long lastUsed = System.currentTimeMillis();
+
+		private Entry(HTTPClient client) {
+			this.client = client;
+		}
+	}
+
+	public static class PoolStatistics {
+		private int leased, idle, waiting;
+		private long created, reused, evicted, timeouts;
+
+		PoolStatistics(int leased, int idle, int waiting, long created, long reused, long evicted, long timeouts) {
+			this.leased = leased;
+			this.idle = idle;
+			this.waiting = waiting;
+			this.created = created;
+			this.reused = reused;
+			this.evicted = evicted;
+			this.timeouts = timeouts;
+		}
+
+		public int getLeased() {
+			return leased;
+		}
+		public int getIdle() {
+			return idle;
+		}
+		public int getWaiting() {
+			return waiting;
+		}
+		public long getCreated() {
+			return created;
+		}
+		public long getReused() {
+			return reused;
+		}
+		public long getEvicted() {
+			return evicted;
+		}
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		@Override
+		public String toString() {
+			return "leased: " + leased + ", idle: " + idle + ", waiting: " + waiting + ", created: " + created + ", reused: " + reused + ", evicted: " + evicted + ", timeouts: " + timeouts;
+		}
+	}
+}
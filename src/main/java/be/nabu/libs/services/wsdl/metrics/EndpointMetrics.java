@@ -0,0 +1,111 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import be.nabu.libs.services.wsdl.api.InvocationPhase;
+
+/**
+ * The aggregated metrics of one service against one endpoint.
+ */
+public class EndpointMetrics {
+
+	private final String serviceId, endpoint;
+	private final Map<InvocationPhase, LatencyHistogram> phases;
+	private final LatencyHistogram total = new LatencyHistogram();
+	private final LongAdder errors = new LongAdder(), faults = new LongAdder(), requestBytes = new LongAdder(), responseBytes = new LongAdder();
+	private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<Integer, LongAdder>();
+	
+	public EndpointMetrics(String serviceId, String endpoint) {
+		this.serviceId = serviceId;
+		this.endpoint = endpoint;
+		// the map is filled up front and never modified afterwards so it can be read concurrently
+		Map<InvocationPhase, LatencyHistogram> phases = new EnumMap<InvocationPhase, LatencyHistogram>(InvocationPhase.class);
+		for (InvocationPhase phase : InvocationPhase.values()) {
+			phases.put(phase, new LatencyHistogram());
+		}
+		this.phases = Collections.unmodifiableMap(phases);
+	}
+	
+	void recordStatus(int status) {
+		LongAdder adder = statuses.get(status);
+		if (adder == null) {
+			statuses.putIfAbsent(status, new LongAdder());
+			adder = statuses.get(status);
+		}
+		adder.increment();
+	}
+	
+	public String getServiceId() {
+		return serviceId;
+	}
+	public String getEndpoint() {
+		return endpoint;
+	}
+	public LatencyHistogram getPhase(InvocationPhase phase) {
+		return phases.get(phase);
+	}
+	public LatencyHistogram getTotal() {
+		return total;
+	}
+	public long getCalls() {
+		return total.getCount();
+	}
+	public long getErrors() {
+		return errors.sum();
+	}
+	LongAdder getErrorCounter() {
+		return errors;
+	}
+	public long getFaults() {
+		return faults.sum();
+	}
+	LongAdder getFaultCounter() {
+		return faults;
+	}
+	public long getRequestBytes() {
+		return requestBytes.sum();
+	}
+	LongAdder getRequestByteCounter() {
+		return requestBytes;
+	}
+	public long getResponseBytes() {
+		return responseBytes.sum();
+	}
+	LongAdder getResponseByteCounter() {
+		return responseBytes;
+	}
+	public long getStatusCount(int status) {
+		LongAdder adder = statuses.get(status);
+		return adder == null ? 0 : adder.sum();
+	}
+	public Map<Integer, Long> getStatuses() {
+		Map<Integer, Long> result = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+}
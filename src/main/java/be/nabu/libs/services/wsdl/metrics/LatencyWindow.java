@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.metrics;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The latency of the recent past: measurements go to the histogram of the current window, the previous window is kept so a fresh window is never empty.
+ * Older measurements age out so percentiles follow changes in the latency, also when nothing is recorded for a while.
+ */
+public class LatencyWindow {
+
+	// in ms
+	private volatile long window;
+	private final AtomicReference<Generation> generation = new AtomicReference<Generation>(new Generation(null, System.currentTimeMillis()));
+	
+	/**
+	 * The current and previous histogram are swapped together so a reader never sees the same histogram twice or a window that was skipped
+	 */
+	private static class Generation {
+		private final LatencyHistogram current = new LatencyHistogram(), previous;
+		private final long started;
+		
+		private Generation(LatencyHistogram previous, long started) {
+			this.previous = previous;
+			this.started = started;
+		}
+	}
+	
+	public LatencyWindow(long window) {
+		this.window = window;
+	}
+	
+	public void record(long latency) {
+		getGeneration(System.currentTimeMillis()).current.record(latency);
+	}
+	
+	/**
+	 * Rotates the windows if the current one is over, both when recording and when reading so a quiet period does not keep old measurements around
+	 */
+	private Generation getGeneration(long now) {
+		Generation generation = this.generation.get();
+		while (now - generation.started > window) {
+			// if the current window ended more than a window ago, its measurements are too old to serve as the previous window
+			Generation next = new Generation(now - generation.started > window * 2 ? null : generation.current, now);
+			if (this.generation.compareAndSet(generation, next)) {
+				return next;
+			}
+			generation = this.generation.get();
+		}
+		return generation;
+	}
+	
+	/**
+	 * The percentile (between 0 and 1) of the previous window, or of the current one if the previous window does not have enough samples.
+	 * Returns -1 if neither has enough samples.
+	 */
+	public long getPercentile(double percentile, int minSamples) {
+		Generation generation = getGeneration(System.currentTimeMillis());
+		LatencyHistogram histogram = generation.previous;
+		if (histogram == null || histogram.getCount() < minSamples) {
+			histogram = generation.current;
+		}
+		return histogram.getCount() >= minSamples ? histogram.getPercentile(percentile) : -1;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+	public void setWindow(long window) {
+		this.window = window;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.nabu.libs.services.wsdl.api.InvocationPhase;
+import be.nabu.libs.services.wsdl.api.WSInvocation;
+import be.nabu.libs.services.wsdl.api.WSMetricsListener;
+
+/**
+ * Aggregates the invocations in memory per service and endpoint, the same collector can be shared by multiple services.
+ */
+public class MetricsCollector implements WSMetricsListener {
+
+	private final ConcurrentMap<String, EndpointMetrics> metrics = new ConcurrentHashMap<String, EndpointMetrics>();
+	
+	@Override
+	public void record(WSInvocation invocation) {
+		EndpointMetrics metrics = getOrCreate(invocation.getService().getId(), invocation.getEndpoint());
+		for (InvocationPhase phase : InvocationPhase.values()) {
+			long duration = invocation.getDuration(phase);
+			if (duration > 0) {
+				metrics.getPhase(phase).record(duration);
+			}
+		}
+		metrics.getTotal().record(invocation.getTotalDuration());
+		if (invocation.getRequestBytes() > 0) {
+			metrics.getRequestByteCounter().add(invocation.getRequestBytes());
+		}
+		if (invocation.getResponseBytes() > 0) {
+			metrics.getResponseByteCounter().add(invocation.getResponseBytes());
+		}
+		if (invocation.getStatus() > 0) {
+			metrics.recordStatus(invocation.getStatus());
+		}
+		if (invocation.isFault()) {
+			metrics.getFaultCounter().increment();
+		}
+		if (invocation.getException() != null) {
+			metrics.getErrorCounter().increment();
+		}
+	}
+	
+	private EndpointMetrics getOrCreate(String serviceId, String endpoint) {
+		String key = getKey(serviceId, endpoint);
+		EndpointMetrics result = metrics.get(key);
+		if (result == null) {
+			metrics.putIfAbsent(key, new EndpointMetrics(serviceId, endpoint));
+			result = metrics.get(key);
+		}
+		return result;
+	}
+	
+	private static String getKey(String serviceId, String endpoint) {
+		return serviceId + "@" + endpoint;
+	}
+	
+	public EndpointMetrics getMetrics(String serviceId, String endpoint) {
+		return metrics.get(getKey(serviceId, endpoint));
+	}
+	
+	public List<EndpointMetrics> getMetrics() {
+		return new ArrayList<EndpointMetrics>(metrics.values());
+	}
+	
+	public void clear() {
+		metrics.clear();
+	}
+}
@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.services.wsdl.metrics.LatencyWindow;
+
+/**
+ * Derives the timeout of a call from the recent latency of the operation on the endpoint: a percentile multiplied by a factor, clamped between the floor and the ceiling.
+ * Until enough responses have been measured, the ceiling is used.
+ * 
+ * Calls that time out are measured at the timeout they were given, so if more calls than the percentile allows time out, the timeout grows until it reaches the ceiling.
+ * The same policy can be shared by all the services of a wsdl, the latency is kept per operation and endpoint.
+ */
+public class AdaptiveTimeoutPolicy {
+
+	// the percentile (between 0 and 1) of the recent latency
+	private double percentile = 0.99;
+	private double factor = 2;
+	// in ms
+	private long floor = 100, ceiling = 60000;
+	private int minSamples = 100;
+	private long window = 60000;
+	
+	private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<String, LatencyWindow>();
+	
+	public static String getKey(String operation, String endpoint) {
+		return operation + "@" + endpoint;
+	}
+	
+	/**
+	 * The timeout in ms for the next call of the operation to the endpoint
+	 */
+	public long getTimeout(String operation, String endpoint) {
+		return getTimeout(latencies.get(getKey(operation, endpoint)));
+	}
+	
+	private long getTimeout(LatencyWindow latency) {
+		long measured = latency == null ? -1 : latency.getPercentile(percentile, minSamples);
+		if (measured < 0) {
+			return ceiling;
+		}
+		return Math.min(ceiling, Math.max(floor, (long) Math.ceil(TimeUnit.NANOSECONDS.toMillis(measured) * factor)));
+	}
+	
+	/**
+	 * The current timeout in ms per operation and endpoint, for monitoring
+	 */
+	public Map<String, Long> getTimeouts() {
+		Map<String, Long> timeouts = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LatencyWindow> entry : latencies.entrySet()) {
+			timeouts.put(entry.getKey(), getTimeout(entry.getValue()));
+		}
+		return timeouts;
+	}
+	
+	/**
+	 * Records the latency (in ns) of a call of the operation to the endpoint
+	 */
+	public void record(String operation, String endpoint, long latency) {
+		String key = getKey(operation, endpoint);
+		LatencyWindow window = latencies.get(key);
+		if (window == null) {
+			window = new LatencyWindow(this.window);
+			LatencyWindow existing = latencies.putIfAbsent(key, window);
+			if (existing != null) {
+				window = existing;
+			}
+		}
+		window.record(latency);
+	}
+
+	public double getPercentile() {
+		return percentile;
+	}
+	public void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	/**
+	 * The percentile is multiplied by this factor to get the timeout
+	 */
+	public double getFactor() {
+		return factor;
+	}
+	public void setFactor(double factor) {
+		this.factor = factor;
+	}
+
+	/**
+	 * The lower bound of the timeout in ms
+	 */
+	public long getFloor() {
+		return floor;
+	}
+	public void setFloor(long floor) {
+		this.floor = floor;
+	}
+
+	/**
+	 * The upper bound of the timeout in ms, this is also the timeout as long as there are not enough measurements
+	 */
+	public long getCeiling() {
+		return ceiling;
+	}
+	public void setCeiling(long ceiling) {
+		this.ceiling = ceiling;
+	}
+
+	public int getMinSamples() {
+		return minSamples;
+	}
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * How long (in ms) the latency is measured before a new window is started, only applies to operations and endpoints that have not been measured yet
+	 */
+	public long getWindow() {
+		return window;
+	}
+	public void setWindow(long window) {
+		this.window = window;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The circuit breaker of a single endpoint, it keeps the outcome of the last calls and opens when too many of them failed or were slow.
+ * While open, calls are rejected without reaching the endpoint. After the open duration a limited amount of probes is let through (half open):
+ * if they all succeed the circuit closes, if one of them fails it opens again.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private static final byte FAILED = 1, SLOW = 2;
+	
+	private final CircuitBreakerPolicy policy;
+	private final Lock lock = new ReentrantLock();
+	private State state = State.CLOSED;
+	// the outcomes of the last calls in a ring buffer
+	private final byte [] outcomes;
+	private int index, calls, failures, slow;
+	private long openedAt;
+	private int probes, probeSuccesses;
+	private long generation;
+	private final AtomicLong rejected = new AtomicLong(), opened = new AtomicLong();
+	
+	CircuitBreaker(CircuitBreakerPolicy policy) {
+		this.policy = policy;
+		this.outcomes = new byte[Math.max(1, policy.getWindow())];
+	}
+	
+	/**
+	 * The permit for a single call, it reports the outcome of that call to the breaker that issued it.
+	 * Every permit must be followed by exactly one call to {@link #onSuccess(long)}, {@link #onFailure(long)} or {@link #onIgnored()}
+	 */
+	public class Permit {
+		// the state transition the permit was issued in
+		private final long generation;
+		private final boolean probe;
+		
+		private Permit(long generation, boolean probe) {
+			this.generation = generation;
+			this.probe = probe;
+		}
+		
+		public void onSuccess(long duration) {
+			record(this, isSlow(duration) ? SLOW : 0);
+		}
+		
+		public void onFailure(long duration) {
+			record(this, (byte) (FAILED | (isSlow(duration) ? SLOW : 0)));
+		}
+		
+		/**
+		 * The call did not say anything about the health of the endpoint (e.g. it failed before it was sent)
+		 */
+		public void onIgnored() {
+			lock.lock();
+			try {
+				if (probe && generation == CircuitBreaker.this.generation && probes > 0) {
+					probes--;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Whether the call probes a half open circuit
+		 */
+		public boolean isProbe() {
+			return probe;
+		}
+	}
+	
+	/**
+	 * Returns a permit if the call is allowed or null if it is rejected
+	 */
+	public Permit acquire() {
+		lock.lock();
+		try {
+			if (state == State.OPEN) {
+				if (System.currentTimeMillis() - openedAt < policy.getOpenDuration()) {
+					rejected.incrementAndGet();
+					return null;
+				}
+				transition(State.HALF_OPEN);
+				probes = 0;
+				probeSuccesses = 0;
+			}
+			if (state == State.HALF_OPEN) {
+				if (probes >= policy.getHalfOpenProbes()) {
+					rejected.incrementAndGet();
+					return null;
+				}
+				probes++;
+				return new Permit(generation, true);
+			}
+			return new Permit(generation, false);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private boolean isSlow(long duration) {
+		return policy.getSlowCallDuration() > 0 && duration > policy.getSlowCallDuration() * 1000000l;
+	}
+	
+	private void record(Permit permit, byte outcome) {
+		lock.lock();
+		try {
+			// calls that were permitted before the last state transition say nothing about the current state
+			if (permit.generation != generation) {
+				return;
+			}
+			switch (state) {
+				case HALF_OPEN:
+					if (outcome != 0) {
+						open();
+					}
+					else if (++probeSuccesses >= policy.getHalfOpenProbes()) {
+						transition(State.CLOSED);
+						reset();
+					}
+				break;
+				case CLOSED:
+					if (calls == outcomes.length) {
+						byte evicted = outcomes[index];
+						if ((evicted & FAILED) != 0) {
+							failures--;
+						}
+						if ((evicted & SLOW) != 0) {
+							slow--;
+						}
+					}
+					else {
+						calls++;
+					}
+					outcomes[index] = outcome;
+					index = (index + 1) % outcomes.length;
+					if ((outcome & FAILED) != 0) {
+						failures++;
+					}
+					if ((outcome & SLOW) != 0) {
+						slow++;
+					}
+					if (calls >= policy.getMinimumCalls() && (failures >= policy.getFailureRateThreshold() * calls 
+							|| (policy.getSlowCallDuration() > 0 && slow >= policy.getSlowCallRateThreshold() * calls))) {
+						open();
+					}
+				break;
+				default:
+					// permits are never issued while open
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void transition(State state) {
+		this.state = state;
+		generation++;
+	}
+	
+	private void open() {
+		transition(State.OPEN);
+		openedAt = System.currentTimeMillis();
+		opened.incrementAndGet();
+		reset();
+	}
+	
+	private void reset() {
+		index = 0;
+		calls = 0;
+		failures = 0;
+		slow = 0;
+	}
+	
+	public State getState() {
+		lock.lock();
+		try {
+			// report an expired open state as half open, the transition itself happens on the next call
+			return state == State.OPEN && System.currentTimeMillis() - openedAt >= policy.getOpenDuration() ? State.HALF_OPEN : state;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * The amount of calls that were rejected without reaching the endpoint
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * The amount of times the circuit opened
+	 */
+	public long getOpened() {
+		return opened.get();
+	}
+}
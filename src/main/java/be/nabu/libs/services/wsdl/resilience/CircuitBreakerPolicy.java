@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The settings of the circuit breakers and the breakers themselves, one per endpoint.
+ * I/O failures and the configured http codes count as failures, calls that take longer than the slow call duration count as slow.
+ */
+public class CircuitBreakerPolicy {
+
+	// the amount of calls the rates are calculated over
+	private int window = 20;
+	private int minimumCalls = 10;
+	// the breaker opens once the rate reaches the threshold
+	private double failureRateThreshold = 0.5;
+	// in ms, 0 disables the slow call detection
+	private long slowCallDuration;
+	private double slowCallRateThreshold = 0.8;
+	private long openDuration = 30000;
+	private int halfOpenProbes = 3;
+	private Set<Integer> failureHttpCodes = new HashSet<Integer>(Arrays.asList(502, 503, 504));
+	
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	
+	public CircuitBreaker getCircuitBreaker(String endpoint) {
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if (breaker == null) {
+			breaker = new CircuitBreaker(this);
+			CircuitBreaker existing = breakers.putIfAbsent(endpoint, breaker);
+			if (existing != null) {
+				breaker = existing;
+			}
+		}
+		return breaker;
+	}
+	
+	public Map<String, CircuitBreaker> getCircuitBreakers() {
+		return breakers;
+	}
+	
+	/**
+	 * Whether the outcome of a call counts as a failure, the status is 0 if no response was received
+	 */
+	public boolean isFailure(int status, Throwable exception) {
+		if (failureHttpCodes != null && failureHttpCodes.contains(status)) {
+			return true;
+		}
+		while (exception != null) {
+			if (exception instanceof IOException) {
+				return true;
+			}
+			exception = exception.getCause() == exception ? null : exception.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Only applies to breakers that have not been created yet
+	 */
+	public int getWindow() {
+		return window;
+	}
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * The amount of calls that are needed before the rates are evaluated
+	 */
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+	public void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+	}
+
+	public double getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+	public void setFailureRateThreshold(double failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	public long getSlowCallDuration() {
+		return slowCallDuration;
+	}
+	public void setSlowCallDuration(long slowCallDuration) {
+		this.slowCallDuration = slowCallDuration;
+	}
+
+	public double getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+	public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	/**
+	 * How long (in ms) the circuit stays open before probes are let through
+	 */
+	public long getOpenDuration() {
+		return openDuration;
+	}
+	public void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	public int getHalfOpenProbes() {
+		return halfOpenProbes;
+	}
+	public void setHalfOpenProbes(int halfOpenProbes) {
+		this.halfOpenProbes = halfOpenProbes;
+	}
+
+	public Set<Integer> getFailureHttpCodes() {
+		return failureHttpCodes;
+	}
+	public void setFailureHttpCodes(Set<Integer> failureHttpCodes) {
+		this.failureHttpCodes = failureHttpCodes;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The settings of the concurrency limiters and the limiters themselves, one per endpoint.
+ * Share the policy between the services that call the same endpoints so they share the limit.
+ */
+public class ConcurrencyLimitPolicy {
+
+	private int initialLimit = 20, minLimit = 1, maxLimit = 200;
+	// how much slower than the baseline a call can be before the limit is lowered
+	private double tolerance = 2;
+	private double backoffRatio = 0.9;
+	// the amount of calls after which the baseline latency is recalculated
+	private int window = 500;
+	private int maxQueued = 50;
+	// how long (in ms) a call waits in the queue
+	private long maxWait = 1000;
+	private Set<Integer> droppedHttpCodes = new HashSet<Integer>(Arrays.asList(429, 502, 503, 504));
+	
+	private final ConcurrentMap<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+	
+	public ConcurrencyLimiter getConcurrencyLimiter(String endpoint) {
+		ConcurrencyLimiter limiter = limiters.get(endpoint);
+		if (limiter == null) {
+			limiter = new ConcurrencyLimiter(this);
+			ConcurrencyLimiter existing = limiters.putIfAbsent(endpoint, limiter);
+			if (existing != null) {
+				limiter = existing;
+			}
+		}
+		return limiter;
+	}
+	
+	public Map<String, ConcurrencyLimiter> getConcurrencyLimiters() {
+		return limiters;
+	}
+	
+	/**
+	 * Whether the endpoint dropped the call because of overload, the status is 0 if no response was received
+	 */
+	public boolean isDropped(int status, Throwable exception) {
+		if (droppedHttpCodes != null && droppedHttpCodes.contains(status)) {
+			return true;
+		}
+		while (exception != null) {
+			if (exception instanceof IOException) {
+				return true;
+			}
+			exception = exception.getCause() == exception ? null : exception.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Only applies to limiters that have not been created yet
+	 */
+	public int getInitialLimit() {
+		return initialLimit;
+	}
+	public void setInitialLimit(int initialLimit) {
+		this.initialLimit = initialLimit;
+	}
+
+	public int getMinLimit() {
+		return minLimit;
+	}
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+	public void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	public double getBackoffRatio() {
+		return backoffRatio;
+	}
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * The maximum amount of calls waiting for a slot, 0 rejects calls over the limit immediately
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public Set<Integer> getDroppedHttpCodes() {
+		return droppedHttpCodes;
+	}
+	public void setDroppedHttpCodes(Set<Integer> droppedHttpCodes) {
+		this.droppedHttpCodes = droppedHttpCodes;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the amount of concurrent requests to a single endpoint, the limit is adjusted from the observed latency (AIMD).
+ * 
+ * The lowest latency of the last window is taken as the latency of an endpoint without load.
+ * As long as the latency stays within the tolerance of that baseline and the limit is actually used, the limit grows by one per limit calls.
+ * When the latency goes beyond the tolerance or a call is dropped (I/O failure, throttling), the limit is multiplied by the backoff ratio.
+ * 
+ * Calls over the limit wait in a bounded queue for a bounded time, if the queue is full or the time is up they are rejected.
+ */
+public class ConcurrencyLimiter {
+
+	private final ConcurrencyLimitPolicy policy;
+	private final Lock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private double limit;
+	private int inFlight, queued;
+	// in nanoseconds
+	private long baseline, windowMinimum = Long.MAX_VALUE;
+	private int samples;
+	private final AtomicLong rejected = new AtomicLong();
+	
+	ConcurrencyLimiter(ConcurrencyLimitPolicy policy) {
+		this.policy = policy;
+		this.limit = policy.getInitialLimit();
+	}
+	
+	/**
+	 * Returns true if the call can proceed, it must then be followed by exactly one call to {@link #release(long, boolean)} or {@link #release()}
+	 */
+	public boolean acquire() throws InterruptedException {
+		return acquire(policy.getMaxWait());
+	}
+	
+	/**
+	 * Waits at most the given time (in ms) in the queue, capped at the max wait of the policy
+	 */
+	public boolean acquire(long maxWait) throws InterruptedException {
+		maxWait = Math.min(maxWait, policy.getMaxWait());
+		lock.lock();
+		try {
+			if (inFlight < (int) limit) {
+				inFlight++;
+				return true;
+			}
+			if (queued >= policy.getMaxQueued() || maxWait <= 0) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			queued++;
+			try {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait);
+				while (inFlight >= (int) limit) {
+					if (remaining <= 0) {
+						rejected.incrementAndGet();
+						return false;
+					}
+					remaining = available.awaitNanos(remaining);
+				}
+				inFlight++;
+				return true;
+			}
+			finally {
+				queued--;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Releases a call and adjusts the limit, the latency is in nanoseconds
+	 */
+	public void release(long latency, boolean dropped) {
+		lock.lock();
+		try {
+			if (!dropped) {
+				if (samples == 0 || latency < windowMinimum) {
+					windowMinimum = latency;
+				}
+				if (baseline == 0 || latency < baseline) {
+					baseline = latency;
+				}
+				// start a new window so the baseline can go up again if the endpoint got slower
+				if (++samples >= policy.getWindow()) {
+					baseline = windowMinimum;
+					samples = 0;
+				}
+			}
+			if (dropped || latency > baseline * policy.getTolerance()) {
+				limit = Math.max(policy.getMinLimit(), limit * policy.getBackoffRatio());
+			}
+			// only grow if we are actually using the limit
+			else if (inFlight * 2 >= limit) {
+				limit = Math.min(policy.getMaxLimit(), limit + 1 / limit);
+			}
+			done();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Releases a call without a measurement, e.g. because it failed before it was sent
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			done();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void done() {
+		inFlight--;
+		int free = (int) limit - inFlight;
+		if (free > 1) {
+			available.signalAll();
+		}
+		else if (free == 1) {
+			available.signal();
+		}
+	}
+	
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getRejected() {
+		return rejected.get();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate of calls with a token bucket per endpoint, per user or per combination of both.
+ * The operation is not part of the key, so set the same limiter on all the services of a wsdl to enforce a limit that applies to the partner as a whole.
+ * 
+ * If there is no token, the caller either waits (at most the max wait) or, if the max wait is 0, is rejected immediately.
+ */
+public class RateLimiter {
+
+	public enum Scope {
+		ENDPOINT,
+		USERNAME,
+		ENDPOINT_AND_USERNAME
+	}
+	
+	// tokens per second
+	private double rate;
+	private int burst;
+	private Scope scope = Scope.ENDPOINT;
+	// in ms
+	private long maxWait;
+	
+	private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final AtomicLong delayed = new AtomicLong(), rejected = new AtomicLong();
+	
+	public RateLimiter(double rate, int burst) {
+		this.rate = rate;
+		this.burst = burst;
+	}
+	
+	/**
+	 * Waits until the call may proceed, returns false if that would take longer than the max wait
+	 */
+	public boolean acquire(String endpoint, String username) throws InterruptedException {
+		return acquire(endpoint, username, maxWait);
+	}
+	
+	/**
+	 * Waits at most the given time (in ms), capped at the max wait, for example because the call has to be done before a deadline
+	 */
+	public boolean acquire(String endpoint, String username, long maxWait) throws InterruptedException {
+		TokenBucket bucket = getTokenBucket(getKey(endpoint, username));
+		long wait = bucket.take(TimeUnit.MILLISECONDS.toNanos(Math.max(0, Math.min(maxWait, this.maxWait))));
+		if (wait < 0) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (wait > 0) {
+			delayed.incrementAndGet();
+			long deadline = System.nanoTime() + wait;
+			// parking does not pin virtual threads
+			while ((wait = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+		return true;
+	}
+	
+	public String getKey(String endpoint, String username) {
+		switch (scope) {
+			case USERNAME:
+				return username == null ? "" : username;
+			case ENDPOINT_AND_USERNAME:
+				return endpoint + "#" + (username == null ? "" : username);
+			default:
+				return endpoint;
+		}
+	}
+	
+	/**
+	 * Whether every endpoint has its own bucket, if not there is no point in trying another endpoint when the limit is exceeded
+	 */
+	public boolean isPerEndpoint() {
+		return scope != Scope.USERNAME;
+	}
+	
+	public TokenBucket getTokenBucket(String key) {
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new TokenBucket(rate, burst);
+			TokenBucket existing = buckets.putIfAbsent(key, bucket);
+			if (existing != null) {
+				bucket = existing;
+			}
+		}
+		return bucket;
+	}
+	
+	public Map<String, TokenBucket> getTokenBuckets() {
+		return buckets;
+	}
+	
+	/**
+	 * The amount of calls that had to wait for a token
+	 */
+	public long getDelayed() {
+		return delayed.get();
+	}
+	
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Only applies to buckets that have not been created yet
+	 */
+	public double getRate() {
+		return rate;
+	}
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * The amount of calls that can be done at once after a quiet period
+	 */
+	public int getBurst() {
+		return burst;
+	}
+	public void setBurst(int burst) {
+		this.burst = burst;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+	public void setScope(Scope scope) {
+		this.scope = scope;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Retries calls that failed at the connection level (the request never reached the server) or with one of the configured http codes or soap fault codes.
+ * The backoff grows exponentially and is fully jittered so clients that failed at the same time do not retry at the same time.
+ * 
+ * A retried http code or fault code means the request is sent again after it was processed by the server, only configure them for operations where that is safe.
+ */
+public class RetryPolicy {
+
+	// soap 1.1 faultcode or soap 1.2 Code/Value, without the prefix
+	private static final Pattern FAULT_CODE = Pattern.compile("<(?:[\\w.-]+:)?(?:faultcode|Code)\\b[^>]*>\\s*(?:<(?:[\\w.-]+:)?Value\\b[^>]*>\\s*)?(?:[\\w.-]+:)?([^<\\s]+)");
+	
+	// including the first attempt
+	private int maxAttempts = 3;
+	private long initialBackoff = 100, maxBackoff = 5000;
+	private double multiplier = 2;
+	private Set<Integer> retryableHttpCodes = new HashSet<Integer>(Arrays.asList(503));
+	private Set<String> retryableFaultCodes = new HashSet<String>();
+	
+	private final AtomicLong retries = new AtomicLong();
+	
+	/**
+	 * Whether the given attempt (starting at 1) should be retried, the status is 0 if no response was received
+	 */
+	public boolean isRetryable(int attempt, int status, String faultCode, Throwable exception) {
+		if (attempt >= maxAttempts) {
+			return false;
+		}
+		return isConnectionFailure(exception) 
+			|| (status != 0 && retryableHttpCodes != null && retryableHttpCodes.contains(status))
+			|| (faultCode != null && retryableFaultCodes != null && retryableFaultCodes.contains(faultCode));
+	}
+	
+	/**
+	 * The time (in ms) to wait before the next attempt
+	 */
+	public long getBackoff(int attempt) {
+		retries.incrementAndGet();
+		double backoff = Math.min(maxBackoff, initialBackoff * Math.pow(multiplier, attempt - 1));
+		return backoff <= 0 ? 0 : ThreadLocalRandom.current().nextLong((long) backoff + 1);
+	}
+	
+	private static boolean isConnectionFailure(Throwable exception) {
+		while (exception != null) {
+			if (exception instanceof ConnectException || exception instanceof NoRouteToHostException || exception instanceof UnknownHostException) {
+				return true;
+			}
+			exception = exception.getCause() == exception ? null : exception.getCause();
+		}
+		return false;
+	}
+	
+	/**
+	 * Extracts the fault code (without prefix) from a soap fault, returns null if there is none
+	 */
+	public static String getFaultCode(String content) {
+		Matcher matcher = FAULT_CODE.matcher(content);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+	
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * The upper bound (in ms) of the backoff after the first attempt
+	 */
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+	public void setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+	}
+
+	public Set<Integer> getRetryableHttpCodes() {
+		return retryableHttpCodes;
+	}
+	public void setRetryableHttpCodes(Set<Integer> retryableHttpCodes) {
+		this.retryableHttpCodes = retryableHttpCodes;
+	}
+
+	/**
+	 * The fault codes without prefix, e.g. "Server" or "Receiver"
+	 */
+	public Set<String> getRetryableFaultCodes() {
+		return retryableFaultCodes;
+	}
+	public void setRetryableFaultCodes(Set<String> retryableFaultCodes) {
+		this.retryableFaultCodes = retryableFaultCodes;
+	}
+}
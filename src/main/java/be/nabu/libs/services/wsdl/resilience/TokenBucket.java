@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, it is implemented as a generic cell rate algorithm so the whole state is a single timestamp that is updated with a compare and set.
+ * The timestamp is the theoretical arrival time of the next call: it moves forward one interval per call and the bucket is full when it is in the past.
+ */
+public class TokenBucket {
+
+	// the nanoseconds per token and the amount of nanoseconds a burst can be ahead of the rate
+	private final long interval, tolerance;
+	private final AtomicLong theoreticalArrival;
+	
+	public TokenBucket(double rate, int burst) {
+		this.interval = (long) (1000000000d / rate);
+		this.tolerance = interval * Math.max(0, burst - 1);
+		this.theoreticalArrival = new AtomicLong(System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token and returns how long (in ns) the caller has to wait before it may proceed.
+	 * If that would be longer than the max wait, no token is taken and -1 is returned.
+	 */
+	public long take(long maxWait) {
+		while (true) {
+			long now = System.nanoTime();
+			long current = theoreticalArrival.get();
+			long arrival = current - now < 0 ? now : current;
+			long wait = arrival - tolerance - now;
+			if (wait > maxWait) {
+				return -1;
+			}
+			if (theoreticalArrival.compareAndSet(current, arrival + interval)) {
+				return Math.max(0, wait);
+			}
+		}
+	}
+	
+	/**
+	 * The amount of tokens that can be taken right now without waiting
+	 */
+	public int getAvailable() {
+		long ahead = theoreticalArrival.get() - System.nanoTime();
+		if (ahead <= 0) {
+			return (int) (tolerance / interval) + 1;
+		}
+		return (int) Math.max(0, Math.floorDiv(tolerance - ahead, interval) + 1);
+	}
+}
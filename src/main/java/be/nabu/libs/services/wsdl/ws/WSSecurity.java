@@ -17,28 +17,35 @@
 
 package be.nabu.libs.services.wsdl.ws;
 
-import java.io.ByteArrayInputStream;
-import java.nio.charset.Charset;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.property.api.Property;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.services.wsdl.WSDLService;
-import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.services.wsdl.api.WSCompiledExtension;
 import be.nabu.libs.services.wsdl.api.WSSecurityType;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.api.DefinedSimpleType;
-import be.nabu.libs.types.api.Element;
-import be.nabu.libs.types.api.Marshallable;
 import be.nabu.libs.types.api.ModifiableComplexType;
 import be.nabu.libs.types.base.ComplexElementImpl;
 import be.nabu.libs.types.base.SimpleElementImpl;
@@ -47,31 +54,148 @@ import be.nabu.libs.types.properties.AttributeQualifiedDefaultProperty;
 import be.nabu.libs.types.properties.NamespaceProperty;
 import be.nabu.libs.types.properties.TimezoneProperty;
 import be.nabu.libs.types.structure.Structure;
-import be.nabu.utils.codec.TranscoderUtils;
-import be.nabu.utils.codec.impl.Base64Encoder;
-import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.security.DigestAlgorithm;
-import be.nabu.utils.security.SecurityUtils;
 
-public class WSSecurity implements WSExtension {
+public class WSSecurity implements WSCompiledExtension<WSSecurity.State> {
 	
 	public static final String WSSE = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
 	public static final String WSU = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd";
 	
+	private static final String BASE64_BINARY = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-soap-message-security-1.0#Base64Binary";
+	private static final int NONCE_SIZE = 16;
+	private static final char [] HEX = "0123456789abcdef".toCharArray();
+	
+	private static final Map<String, String> PREFERRED_PREFIXES;
+	private static final SecureRandom [] RANDOMS;
+	private static final MessageDigest SHA1_PROTOTYPE;
+	private static final ThreadLocal<MessageDigest> SHA1;
+	
+	static {
+		// a power of two so we can mask the thread id
+		int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+		RANDOMS = new SecureRandom[size];
+		for (int i = 0; i < size; i++) {
+			RANDOMS[i] = newRandom();
+		}
+		try {
+			SHA1_PROTOTYPE = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		// cloning is a lot cheaper than looking up the provider, this matters for virtual threads which start without thread locals
+		SHA1 = ThreadLocal.withInitial(() -> {
+			try {
+				return (MessageDigest) SHA1_PROTOTYPE.clone();
+			}
+			catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+	
+	static {
+		Map<String, String> prefixes = new HashMap<String, String>();
+		prefixes.put(WSSE, "wsse");
+		prefixes.put(WSU, "wsu");
+		PREFERRED_PREFIXES = Collections.unmodifiableMap(prefixes);
+	}
+	
 	private WSSecurityType wsSecurityType;
 	// when a duration is configured, the timestamp is added
 	private Long timestampDuration;
 	
 	private TimeZone timezone;
+	private volatile DateTimeFormatter formatter = newFormatter(null);
 	
 	@Override
 	public void addDefinition(WSDLService service, ModifiableComplexType envelope, Value<?>...values) {
-		((ModifiableComplexType) envelope.get("Header").getType()).add(new ComplexElementImpl("Security", newDefinition(service.getSoapNamespace(), timezone), envelope));
+		((ModifiableComplexType) envelope.get("Header").getType()).add(new ComplexElementImpl("Security", newDefinition(service.getSoapNamespace()), envelope));
+	}
+	
+	@Override
+	public State prepare(WSDLService service) {
+		return new State(service.getMarshallingProfile().getSoapPrefix());
+	}
+	
+	@Override
+	public boolean canWriteHeader(State state) {
+		return true;
 	}
 	
 	@Override
 	public void addInstance(WSDLService definition, ComplexContent envelope, ComplexContent input, Value<?>...values) {
 		WSSecurityType value = ValueUtils.getValue(WSSecurityTypeProperty.getInstance(), values);
+		Token token = newToken(definition, input, value);
+		if (token != null) {
+			if (token.created != null) {
+				envelope.set("Header/Security/UsernameToken/Created", token.created);
+			}
+			if (token.timestampId != null) {
+				envelope.set("Header/Security/Timestamp/Created", token.created);
+				envelope.set("Header/Security/Timestamp/Expires", token.expires);
+				envelope.set("Header/Security/Timestamp/@Id", token.timestampId);
+			}
+			if (token.nonce != null) {
+				envelope.set("Header/Security/UsernameToken/Nonce/$value", token.nonce);
+				envelope.set("Header/Security/UsernameToken/Nonce/@EncodingType", BASE64_BINARY);
+			}
+			envelope.set("Header/Security/@mustUnderstand", 1);
+			envelope.set("Header/Security/UsernameToken/@Id", token.id);
+			envelope.set("Header/Security/UsernameToken/Username", token.username);
+			if (token.password != null) {
+				envelope.set("Header/Security/UsernameToken/Password/$value", token.password);
+			}
+			envelope.set("Header/Security/UsernameToken/Password/@Type", token.type.getType());
+		}
+	}
+	
+	/**
+	 * Writes the same header as addInstance would, in the same order
+	 */
+	@Override
+	public void writeHeader(State state, WSDLService service, ComplexContent input, Writer writer) throws IOException {
+		Token token = newToken(service, input, null);
+		if (token != null) {
+			writer.write(state.securityStart);
+			writer.write("<wsse:UsernameToken wsu:Id=\"");
+			writer.write(token.id);
+			writer.write("\"><wsse:Username>");
+			escape(token.username, writer);
+			writer.write("</wsse:Username><wsse:Password Type=\"");
+			writer.write(token.type.getType());
+			if (token.password == null) {
+				writer.write("\"/>");
+			}
+			else {
+				writer.write("\">");
+				escape(token.password, writer);
+				writer.write("</wsse:Password>");
+			}
+			if (token.nonce != null) {
+				writer.write("<wsse:Nonce EncodingType=\"" + BASE64_BINARY + "\">");
+				writer.write(token.nonce);
+				writer.write("</wsse:Nonce>");
+			}
+			if (token.created != null) {
+				writer.write("<wsu:Created>");
+				writer.write(token.created);
+				writer.write("</wsu:Created>");
+			}
+			writer.write("</wsse:UsernameToken>");
+			if (token.timestampId != null) {
+				writer.write("<wsu:Timestamp wsu:Id=\"");
+				writer.write(token.timestampId);
+				writer.write("\"><wsu:Created>");
+				writer.write(token.created);
+				writer.write("</wsu:Created><wsu:Expires>");
+				writer.write(token.expires);
+				writer.write("</wsu:Expires></wsu:Timestamp>");
+			}
+			writer.write("</wsse:Security>");
+		}
+	}
+	
+	private Token newToken(WSDLService definition, ComplexContent input, WSSecurityType value) {
 		if (value == null) {
 			value = wsSecurityType == null ? WSSecurityType.PasswordText : wsSecurityType;
 		}
@@ -79,78 +203,121 @@ public class WSSecurity implements WSExtension {
 		final String username = input == null || input.get("authentication/username") == null ? definition.getUsername() : (String) input.get("authentication/username");
 		final String password = input == null || input.get("authentication/password") == null ? definition.getPassword() : (String) input.get("authentication/password");
 		
+		if (username == null) {
+			return null;
+		}
+		// extract this to properties later on
+		boolean useNonce = true;
+		boolean useCreated = true;
+		
+		Token token = new Token();
+		token.type = value;
+		token.username = username;
+		token.id = "UsernameToken-" + newId();
+		
+		long now = System.currentTimeMillis();
+		DateTimeFormatter formatter = this.formatter;
+		String created = formatter.format(Instant.ofEpochMilli(now));
+		if (useCreated) {
+			token.created = created;
+		}
+		if (timestampDuration != null) {
+			token.created = created;
+			token.expires = formatter.format(Instant.ofEpochMilli(now + timestampDuration));
+			token.timestampId = "Timestamp-" + newId();
+		}
 		
-		if (username != null) {
-			// extract this to properties later on
-			boolean useNonce = true;
-			boolean useCreated = true;
-			
-			Date created = new Date();
-			if (useCreated) {
-				envelope.set("Header/Security/UsernameToken/Created", created);
+		byte [] nonce = null;
+		if (useNonce) {
+			nonce = new byte[NONCE_SIZE];
+			getRandom().nextBytes(nonce);
+			token.nonce = Base64.getEncoder().encodeToString(nonce);
+		}
+		
+		if (password != null) {
+			switch (value) {
+				case PasswordText:
+					token.password = password;
+				break;
+				case PasswordDigest:
+					// Password_Digest = Base64 ( SHA-1 ( nonce + created + password ) )
+					MessageDigest digest = SHA1.get();
+					digest.reset();
+					if (useNonce) {
+						digest.update(nonce);
+					}
+					if (useCreated) {
+						digest.update(created.getBytes(StandardCharsets.UTF_8));
+					}
+					digest.update(password.getBytes(StandardCharsets.UTF_8));
+					token.password = Base64.getEncoder().encodeToString(digest.digest());
+				break;
 			}
-			
-			if (timestampDuration != null) {
-				envelope.set("Header/Security/Timestamp/Created", created);
-				envelope.set("Header/Security/Timestamp/Expires", new Date(created.getTime() + timestampDuration));
-				envelope.set("Header/Security/Timestamp/@Id", "Timestamp-" + UUID.randomUUID().toString().replace("-", ""));
+		}
+		return token;
+	}
+	
+	private static void escape(String value, Writer writer) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			switch (character) {
+				case '&': writer.write("&amp;"); break;
+				case '<': writer.write("&lt;"); break;
+				case '>': writer.write("&gt;"); break;
+				case '"': writer.write("&quot;"); break;
+				default: writer.write(character);
 			}
-			
-			
-			String nonce = null;
-			if (useNonce) {
-				nonce = UUID.randomUUID().toString().replace("-", "");
-				byte[] nonceBytes = nonce.getBytes(Charset.forName("UTF-8"));
-				try {
-					String result = new String(IOUtils.toBytes(TranscoderUtils.transcodeBytes(IOUtils.wrap(nonceBytes, true), new Base64Encoder())), Charset.forName("UTF-8"));
-					envelope.set("Header/Security/UsernameToken/Nonce/$value", result);
-					envelope.set("Header/Security/UsernameToken/Nonce/@EncodingType", "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-soap-message-security-1.0#Base64Binary");
-				}
-				catch (Exception e) {
-					throw new RuntimeException(e);
-				}
+		}
+	}
+	
+	/**
+	 * The nonces come from a fixed set of secure randoms picked by thread, so concurrent requests rarely wait on the same one
+	 */
+	private static SecureRandom getRandom() {
+		return RANDOMS[(int) (Thread.currentThread().getId() & (RANDOMS.length - 1))];
+	}
+	
+	/**
+	 * The default secure random on unix (NativePRNG) funnels every instance through one global lock, which would undo the striping.
+	 * DRBG (java 9+) and SHA1PRNG keep their state per instance and seed themselves from the system on first use.
+	 */
+	private static SecureRandom newRandom() {
+		for (String algorithm : new String [] { "DRBG", "SHA1PRNG" }) {
+			try {
+				return SecureRandom.getInstance(algorithm);
 			}
-			
-			envelope.set("Header/Security/@mustUnderstand", 1);
-			envelope.set("Header/Security/UsernameToken/@Id", "UsernameToken-" + UUID.randomUUID().toString().replace("-", ""));
-			envelope.set("Header/Security/UsernameToken/Username", username);
-			
-			if (password != null) {
-				switch (value) {
-					case PasswordText:
-						envelope.set("Header/Security/UsernameToken/Password/$value", password);
-					break;
-					case PasswordDigest:
-						try {
-							// Password_Digest = Base64 ( SHA-1 ( nonce + created + password ) )
-							String toDigest = password;
-							if (useCreated) {
-								Element<?> element = envelope.getType().get("Header/Security/UsernameToken/Created");
-								toDigest = ((Marshallable<Date>) element.getType()).marshal(created, element.getProperties()) + toDigest;
-							}
-							if (useNonce) {
-								toDigest = nonce + toDigest;
-							}
-							byte[] digest = SecurityUtils.digest(new ByteArrayInputStream(toDigest.getBytes(Charset.forName("UTF-8"))), DigestAlgorithm.SHA1);
-							String result = new String(IOUtils.toBytes(TranscoderUtils.transcodeBytes(IOUtils.wrap(digest, true), new Base64Encoder())), Charset.forName("UTF-8"));
-							envelope.set("Header/Security/UsernameToken/Password/$value", result);
-						}
-						catch (Exception e) {
-							throw new RuntimeException(e);
-						}
-					break;
-				}
+			catch (NoSuchAlgorithmException e) {
+				// try the next one
 			}
-			envelope.set("Header/Security/UsernameToken/Password/@Type", value.getType());
 		}
+		return new SecureRandom();
+	}
+	
+	/**
+	 * The ids only need to be unique within the message, they don't need a secure random
+	 */
+	private static String newId() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		char [] chars = new char[32];
+		toHex(random.nextLong(), chars, 0);
+		toHex(random.nextLong(), chars, 16);
+		return new String(chars);
+	}
+	
+	private static void toHex(long value, char [] chars, int offset) {
+		for (int i = 15; i >= 0; i--) {
+			chars[offset + i] = HEX[(int) (value & 0xf)];
+			value >>>= 4;
+		}
+	}
+	
+	private static DateTimeFormatter newFormatter(TimeZone timezone) {
+		return DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").withZone(timezone == null ? ZoneOffset.UTC : timezone.toZoneId());
 	}
 	
 	@Override
 	public Map<String, String> getPreferredPrefixes() {
-		Map<String, String> prefixes = new HashMap<String, String>();
-		prefixes.put(WSSE, "wsse");
-		prefixes.put(WSU, "wsu");
-		return prefixes;
+		return PREFERRED_PREFIXES;
 	}
 	
 	@Override
@@ -160,7 +327,25 @@ public class WSSecurity implements WSExtension {
 		return list;
 	}
 	
+	/**
+	 * The definition used by the extension itself, the timestamps are strings that are formatted up front (in the timezone of the extension) so the digest is calculated over exactly what is sent
+	 */
+	public static Structure newDefinition(String soapNamespace) {
+		DefinedSimpleType<String> string = SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class);
+		return newDefinition(soapNamespace, string, new ValueImpl<String>(NamespaceProperty.getInstance(), WSU));
+	}
+	
+	/**
+	 * A definition where the timestamps are dates that are marshalled in the given timezone.
+	 * The extension itself no longer uses it: the instances it creates (see {@link #addInstance(WSDLService, ComplexContent, ComplexContent, Value...)}) contain formatted strings and only fit {@link #newDefinition(String)}
+	 */
 	public static Structure newDefinition(String soapNamespace, TimeZone timezone) {
+		return newDefinition(soapNamespace, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Date.class), 
+			new ValueImpl<String>(NamespaceProperty.getInstance(), WSU),
+			new ValueImpl<TimeZone>(TimezoneProperty.getInstance(), timezone));
+	}
+	
+	private static <T> Structure newDefinition(String soapNamespace, DefinedSimpleType<T> timestampType, Value<?>...timestampProperties) {
 		DefinedSimpleType<String> string = SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class);
 		Structure security = new Structure();
 		security.setProperty(new ValueImpl<Boolean>(AttributeQualifiedDefaultProperty.getInstance(), true));
@@ -193,20 +378,14 @@ public class WSSecurity implements WSExtension {
 		nonce.add(new SimpleElementImpl<String>("@EncodingType", string, nonce));
 		token.add(new ComplexElementImpl("Nonce", nonce, token));
 		
-		token.add(new SimpleElementImpl<Date>("Created", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Date.class), token,
-				new ValueImpl<String>(NamespaceProperty.getInstance(), WSU),
-				new ValueImpl<TimeZone>(TimezoneProperty.getInstance(), timezone)));
+		token.add(new SimpleElementImpl<T>("Created", timestampType, token, timestampProperties));
 		
 		Structure timestamp = new Structure();
 		timestamp.setNamespace(WSU);
 		timestamp.add(new SimpleElementImpl<String>("@Id", string, token,
 				new ValueImpl<String>(NamespaceProperty.getInstance(), WSU)));
-		timestamp.add(new SimpleElementImpl<Date>("Created", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Date.class), token,
-				new ValueImpl<String>(NamespaceProperty.getInstance(), WSU),
-				new ValueImpl<TimeZone>(TimezoneProperty.getInstance(), timezone)));
-		timestamp.add(new SimpleElementImpl<Date>("Expires", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Date.class), token,
-				new ValueImpl<String>(NamespaceProperty.getInstance(), WSU),
-				new ValueImpl<TimeZone>(TimezoneProperty.getInstance(), timezone)));
+		timestamp.add(new SimpleElementImpl<T>("Created", timestampType, token, timestampProperties));
+		timestamp.add(new SimpleElementImpl<T>("Expires", timestampType, token, timestampProperties));
 		security.add(new ComplexElementImpl("Timestamp", timestamp, security));
 		
 		return security;
@@ -234,5 +413,22 @@ public class WSSecurity implements WSExtension {
 
 	public void setTimezone(TimeZone timezone) {
 		this.timezone = timezone;
+		this.formatter = newFormatter(timezone);
+	}
+	
+	/**
+	 * The security header start tag only depends on the soap prefix of the service
+	 */
+	public static class State {
+		private final String securityStart;
+		
+		State(String soapPrefix) {
+			this.securityStart = "<wsse:Security xmlns:wsse=\"" + WSSE + "\" xmlns:wsu=\"" + WSU + "\" " + soapPrefix + ":mustUnderstand=\"1\">";
+		}
+	}
+	
+	private static class Token {
+		private WSSecurityType type;
+		private String id, username, password, nonce, created, expires, timestampId;
 	}
 }
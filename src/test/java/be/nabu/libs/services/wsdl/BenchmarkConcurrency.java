@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Measures how many calls can be outstanding at the same time against an upstream with a fixed latency.
+ * Run with -Djdk.tracePinnedThreads=full on java 21+ to verify that nothing pins the carrier threads.
+ */
+public class BenchmarkConcurrency {
+
+	public static void main(String...args) throws Exception {
+		long latency = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+		boolean virtual = args.length > 1 ? Boolean.parseBoolean(args[1]) : true;
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(latency);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setUseVirtualThreads(virtual);
+			System.out.println("Virtual threads: " + (virtual && WSDLExecutors.isVirtualThreadSupported()) + ", upstream latency: " + latency + "ms");
+			for (int concurrency : new int [] { 10, 100, 1000, 5000 }) {
+				List<CompletableFuture<ComplexContent>> futures = new ArrayList<CompletableFuture<ComplexContent>>();
+				long started = System.currentTimeMillis();
+				for (int i = 0; i < concurrency; i++) {
+					ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+					input.set("body/Add/x", 5);
+					input.set("body/Add/y", 6);
+					futures.add(service.newInstance().executeAsync(null, input));
+				}
+				int failed = 0;
+				for (CompletableFuture<ComplexContent> future : futures) {
+					try {
+						future.join();
+					}
+					catch (Exception e) {
+						failed++;
+					}
+				}
+				long took = System.currentTimeMillis() - started;
+				System.out.println("Concurrency " + concurrency + ": " + took + "ms, " + (concurrency * 1000l / Math.max(1, took)) + " calls/s, " + failed + " failed");
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.api.WSDLDefinition;
+import be.nabu.libs.wsdl.parser.WSDLParser;
+import be.nabu.utils.io.IOUtils;
+
+/**
+ * Compares the per call cost of building the input when the envelope is rebuilt every time (the old behavior) and when the compiled envelope is reused.
+ */
+public class BenchmarkEnvelope {
+
+	private static final int WARMUP = 20000, ITERATIONS = 100000;
+
+	public static void main(String...args) throws SAXException, IOException, ParseException, URISyntaxException, ParserConfigurationException {
+		WSDLParser parser = new WSDLParser(Thread.currentThread().getContextClassLoader().getResourceAsStream("example.wsdl"), false);
+		WSDLDefinition definition = parser.getDefinition();
+		BindingOperation operation = definition.getBindings().get(0).getOperations().get(0);
+		WSDLService service = new WSDLService(operation.getName(), operation, new HTTPClientProvider() {
+			@Override
+			public HTTPClient newHTTPClient(String transactionId) {
+				return TestOperation.newClient();
+			}
+		}, Charset.forName("UTF-8"));
+
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/" + operation.getName() + "/x", 5);
+		input.set("body/" + operation.getName() + "/y", 6);
+
+		run("uncached", service, input, true);
+		run("cached", service, input, false);
+	}
+
+	private static void run(String name, WSDLService service, ComplexContent input, boolean invalidate) throws IOException {
+		WSDLServiceInstance instance = service.newInstance();
+		Charset charset = Charset.forName("UTF-8");
+		for (int i = 0; i < WARMUP; i++) {
+			if (invalidate) {
+				service.invalidate();
+			}
+			IOUtils.toBytes(instance.buildInput(input, charset));
+		}
+		long allocated = allocatedBytes();
+		long started = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (invalidate) {
+				service.invalidate();
+			}
+			IOUtils.toBytes(instance.buildInput(input, charset));
+		}
+		long took = System.nanoTime() - started;
+		allocated = allocatedBytes() - allocated;
+		System.out.println(name + ": " + (took / ITERATIONS) + " ns/call, " + (allocated / ITERATIONS) + " bytes allocated/call");
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.services.wsdl.api.WSSecurityType;
+import be.nabu.libs.services.wsdl.ws.WSSecurity;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.utils.io.IOUtils;
+
+/**
+ * Measures building the request and parsing the response for the test wsdls.
+ * Run with the jmh profile (mvn -Pjmh test-compile exec:exec), it adds the gc profiler so the allocation rate per operation is reported next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkEnvelopeJmh {
+
+	@Param({ "example.wsdl", "example2.wsdl", "example3.wsdl" })
+	public String wsdl;
+	
+	@Param({ "false", "true" })
+	public boolean backwardsCompatible;
+	
+	@Param({ "None", "PasswordText", "PasswordDigest" })
+	public String security;
+	
+	private Charset charset = Charset.forName("UTF-8");
+	private WSDLServiceInstance instance;
+	private ComplexContent input;
+	private byte [] response;
+	
+	@Setup
+	public void setup() throws Exception {
+		WSDLService service = TestOperation.newService(wsdl, null, TestOperation.newProvider());
+		service.setBackwardsCompatible(backwardsCompatible);
+		if (!security.equals("None")) {
+			WSSecurity extension = new WSSecurity();
+			extension.setWsSecurityType(WSSecurityType.valueOf(security));
+			service.setExtensions(Arrays.<WSExtension>asList(extension));
+			service.setUsername("user");
+			service.setPassword("secret");
+		}
+		instance = service.newInstance();
+		input = SampleMessages.newInput(service);
+		response = SampleMessages.newResponse(service);
+	}
+	
+	@Benchmark
+	public byte [] buildInput() throws IOException {
+		return IOUtils.toBytes(instance.buildInput(input, charset));
+	}
+	
+	@Benchmark
+	public ComplexContent parseOutput() throws IOException, ParseException {
+		return instance.parseOutput(IOUtils.wrap(response, true), charset);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import be.nabu.libs.services.wsdl.http.PooledHTTPClientProvider;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Drives a service at a fixed concurrency against the stub server and reports the throughput and latency percentiles.
+ * Everything runs on the loopback interface so the numbers can be compared between runs, for example between transport providers.
+ * 
+ * Options are passed as key=value:
+ * 
+ * - wsdl, operation: the service to call, defaults to example.wsdl and the first operation, the response is generated from the wsdl
+ * - concurrency: the amount of callers, defaults to 50
+ * - latency: the delay of the stub server in ms, defaults to 0
+ * - padding: the amount of bytes added to the response, defaults to 0
+ * - warmup, duration: in seconds, default to 5 and 20
+ * - provider: "default" (a new client per call) or "pooled", defaults to pooled
+ * - virtual: use virtual threads for the callers and the service, defaults to false
+ * - stream: stream the requests, defaults to false
+ */
+public class LoadHarness {
+
+	public static void main(String...args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int index = arg.indexOf('=');
+			if (index < 0) {
+				throw new IllegalArgumentException("Expecting key=value: " + arg);
+			}
+			options.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+		String wsdl = option(options, "wsdl", "example.wsdl");
+		String operation = options.get("operation");
+		int concurrency = Integer.parseInt(option(options, "concurrency", "50"));
+		long latency = Long.parseLong(option(options, "latency", "0"));
+		int padding = Integer.parseInt(option(options, "padding", "0"));
+		long warmup = Long.parseLong(option(options, "warmup", "5")) * 1000;
+		long duration = Long.parseLong(option(options, "duration", "20")) * 1000;
+		boolean pooled = option(options, "provider", "pooled").equals("pooled");
+		boolean virtual = Boolean.parseBoolean(option(options, "virtual", "false"));
+		boolean stream = Boolean.parseBoolean(option(options, "stream", "false"));
+		
+		HTTPClientProvider provider = TestOperation.newProvider();
+		if (pooled) {
+			PooledHTTPClientProvider pool = new PooledHTTPClientProvider(null, 10000, 10000);
+			pool.setMaxConnectionsPerEndpoint(concurrency);
+			provider = pool;
+		}
+		WSDLService service = TestOperation.newService(wsdl, operation, provider);
+		service.setUseVirtualThreads(virtual);
+		service.setStreamRequests(stream);
+		
+		StubSoapServer server = StubSoapServer.newSample(service);
+		server.setLatency(latency);
+		server.setPadding(padding);
+		server.start();
+		try {
+			service.setEndpoint(server.getEndpoint());
+			System.out.println("Operation " + service.getOperationName() + " from " + wsdl + ", concurrency: " + concurrency + ", latency: " + latency + "ms, padding: " + padding
+				+ " bytes, provider: " + (pooled ? "pooled" : "default") + ", virtual: " + (virtual && WSDLExecutors.isVirtualThreadSupported()) + ", stream: " + stream);
+			Executor executor = virtual && WSDLExecutors.isVirtualThreadSupported() ? WSDLExecutors.getVirtualThreadExecutor() : WSDLExecutors.newBoundedExecutor(concurrency);
+			try {
+				run(service, executor, concurrency, warmup);
+				report(run(service, executor, concurrency, duration), duration);
+			}
+			finally {
+				if (executor instanceof ExecutorService && executor != WSDLExecutors.getVirtualThreadExecutor()) {
+					((ExecutorService) executor).shutdown();
+				}
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+	
+	private static List<Recorder> run(final WSDLService service, Executor executor, int concurrency, long duration) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + duration;
+		final CountDownLatch latch = new CountDownLatch(concurrency);
+		List<Recorder> recorders = new ArrayList<Recorder>();
+		for (int i = 0; i < concurrency; i++) {
+			final Recorder recorder = new Recorder();
+			recorders.add(recorder);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ComplexContent input = SampleMessages.newInput(service);
+						while (System.currentTimeMillis() < deadline) {
+							long started = System.nanoTime();
+							try {
+								service.newInstance().execute(null, input);
+								recorder.record(System.nanoTime() - started);
+							}
+							catch (Exception e) {
+								recorder.errors++;
+							}
+						}
+					}
+					finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+		latch.await();
+		return recorders;
+	}
+	
+	private static void report(List<Recorder> recorders, long duration) {
+		int size = 0, errors = 0;
+		for (Recorder recorder : recorders) {
+			size += recorder.size;
+			errors += recorder.errors;
+		}
+		long [] latencies = new long[size];
+		int offset = 0;
+		for (Recorder recorder : recorders) {
+			System.arraycopy(recorder.latencies, 0, latencies, offset, recorder.size);
+			offset += recorder.size;
+		}
+		Arrays.sort(latencies);
+		System.out.println("Calls: " + size + ", errors: " + errors + ", throughput: " + (size * 1000l / duration) + " calls/s");
+		if (size > 0) {
+			System.out.println("p50: " + micros(latencies, 0.5) + "us, p99: " + micros(latencies, 0.99) + "us, p999: " + micros(latencies, 0.999) + "us, max: " + (latencies[size - 1] / 1000) + "us");
+		}
+	}
+	
+	private static long micros(long [] sorted, double percentile) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)] / 1000;
+	}
+	
+	private static class Recorder {
+		private long [] latencies = new long[1024];
+		private int size, errors;
+		
+		public void record(long latency) {
+			if (size == latencies.length) {
+				latencies = Arrays.copyOf(latencies, size * 2);
+			}
+			latencies[size++] = latency;
+		}
+	}
+}
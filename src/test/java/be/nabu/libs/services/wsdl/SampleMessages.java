@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import be.nabu.libs.types.BaseTypeInstance;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.binding.xml.XMLMarshaller;
+import be.nabu.libs.wsdl.api.BindingOperationMessage;
+import be.nabu.libs.wsdl.api.MessagePart;
+
+/**
+ * Generates requests and responses from the schema of a service, every element is filled in up to a fixed depth.
+ */
+public class SampleMessages {
+
+	private static final int MAX_DEPTH = 6;
+	// tried in order until the value is accepted by the simple type
+	private static final String [] SAMPLE_VALUES = new String [] { "1", "true", "2016-01-01T00:00:00Z", "2016-01-01" };
+	
+	public static ComplexContent newInput(WSDLService service) {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		if (service.isBackwardsCompatible()) {
+			input.set("request", newContent(service.getOperation().getOperation().getInput().getParts().get(0).getElement(), 0));
+		}
+		else if (service.getOperation().getInputPartLayout() != null) {
+			fill(input, "header/", service.getOperation().getInputPartLayout().getHeader());
+			fill(input, "body/", service.getOperation().getInputPartLayout().getBody());
+		}
+		return input;
+	}
+	
+	public static byte [] newResponse(WSDLService service) throws IOException {
+		ComplexType responseEnvelope = service.getResponseEnvelope();
+		ComplexContent envelope = responseEnvelope.newInstance();
+		if (service.getOperation().getOutputPartLayout() != null) {
+			fill(envelope, "Header/", service.getOperation().getOutputPartLayout().getHeader());
+			fill(envelope, "Body/", service.getOperation().getOutputPartLayout().getBody());
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new XMLMarshaller(new BaseTypeInstance(responseEnvelope)).marshal(output, Charset.forName("UTF-8"), envelope);
+		return output.toByteArray();
+	}
+	
+	private static void fill(ComplexContent content, String prefix, BindingOperationMessage message) {
+		if (message != null && message.getParts() != null) {
+			for (MessagePart part : message.getParts()) {
+				content.set(prefix + part.getElement().getName(), newContent(part.getElement(), 0));
+			}
+		}
+	}
+	
+	private static ComplexContent newContent(Element<?> element, int depth) {
+		ComplexContent content = ((ComplexType) element.getType()).newInstance();
+		for (Element<?> child : (ComplexType) element.getType()) {
+			if (child.getType() instanceof ComplexType) {
+				if (depth < MAX_DEPTH) {
+					content.set(child.getName(), newContent(child, depth + 1));
+				}
+			}
+			else {
+				for (String value : SAMPLE_VALUES) {
+					try {
+						content.set(child.getName(), value);
+						break;
+					}
+					catch (RuntimeException e) {
+						// not a valid value for this type, try the next one
+					}
+				}
+			}
+		}
+		return content;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A loopback http server that answers every request with a canned SOAP response after a configurable delay.
+ * The delay is scheduled rather than slept so a handful of threads can keep thousands of requests outstanding.
+ * The response can be padded to simulate larger payloads.
+ */
+public class StubSoapServer {
+
+	private HttpServer server;
+	private ScheduledExecutorService scheduler;
+	private volatile long latency;
+	private volatile int status = 200;
+	private volatile byte [] response;
+	private byte [] content;
+	private int padding;
+	private AtomicLong requests = new AtomicLong(), completed = new AtomicLong();
+	// the requests that have been received but not yet answered, and the most there have been at once
+	private AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+	private volatile Headers lastHeaders;
+
+	public StubSoapServer(String response) throws IOException {
+		this(response.getBytes(Charset.forName("UTF-8")));
+	}
+	
+	public StubSoapServer(byte [] response) throws IOException {
+		setResponse(response);
+		this.scheduler = Executors.newScheduledThreadPool(4);
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		this.server.setExecutor(Executors.newFixedThreadPool(8));
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				int current = inFlight.incrementAndGet();
+				while (true) {
+					int max = maxInFlight.get();
+					if (current <= max || maxInFlight.compareAndSet(max, current)) {
+						break;
+					}
+				}
+				lastHeaders = exchange.getRequestHeaders();
+				InputStream input = exchange.getRequestBody();
+				byte [] buffer = new byte[8192];
+				while (input.read(buffer) >= 0) {
+					// drain the request
+				}
+				input.close();
+				completed.incrementAndGet();
+				if (latency > 0) {
+					scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							respond(exchange);
+						}
+					}, latency, TimeUnit.MILLISECONDS);
+				}
+				else {
+					respond(exchange);
+				}
+			}
+		});
+	}
+
+	public static StubSoapServer newCalculator(String operation, double result) throws IOException {
+		return new StubSoapServer("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+			+ "<ns:" + operation + "Response xmlns:ns=\"http://example.org/math/types/\"><result>" + result + "</result></ns:" + operation + "Response>"
+			+ "</soap:Body></soap:Envelope>");
+	}
+
+	/**
+	 * Answers with a response generated from the output definition of the service
+	 */
+	public static StubSoapServer newSample(WSDLService service) throws IOException {
+		return new StubSoapServer(SampleMessages.newResponse(service));
+	}
+
+	private void respond(HttpExchange exchange) {
+		try {
+			byte [] bytes = response;
+			exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream output = exchange.getResponseBody();
+			output.write(bytes);
+			output.close();
+		}
+		catch (IOException e) {
+			// the client went away
+		}
+		finally {
+			inFlight.decrementAndGet();
+			exchange.close();
+		}
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		scheduler.shutdownNow();
+	}
+
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/math";
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * The amount of requests that were received in full, a request that was cut off halfway is not counted
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * The most requests that were outstanding at the same time
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	public String getLastHeader(String name) {
+		Headers headers = lastHeaders;
+		return headers == null ? null : headers.getFirst(name);
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public void setResponse(String response) {
+		setResponse(response.getBytes(Charset.forName("UTF-8")));
+	}
+	
+	public void setResponse(byte [] response) {
+		this.content = response;
+		pad();
+	}
+	
+	/**
+	 * The amount of bytes added to the response in a trailing xml comment
+	 */
+	public void setPadding(int padding) {
+		this.padding = padding;
+		pad();
+	}
+	
+	private void pad() {
+		if (padding <= 0) {
+			response = content;
+		}
+		else {
+			byte [] bytes = Arrays.copyOf(content, content.length + padding + 7);
+			System.arraycopy("<!--".getBytes(Charset.forName("UTF-8")), 0, bytes, content.length, 4);
+			Arrays.fill(bytes, content.length + 4, bytes.length - 3, (byte) 'x');
+			System.arraycopy("-->".getBytes(Charset.forName("UTF-8")), 0, bytes, bytes.length - 3, 3);
+			response = bytes;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestBatch extends TestCase {
+
+	public void testBatch() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(20);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			List<ComplexContent> inputs = new ArrayList<ComplexContent>();
+			for (int i = 0; i < 50; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", i);
+				input.set("body/Add/y", 6);
+				// nothing listens on port 1
+				if (i == 25) {
+					input.set("endpoint", "http://127.0.0.1:1/math");
+				}
+				inputs.add(input);
+			}
+			List<BatchResult> results = service.executeBatch(null, inputs, 5);
+			assertEquals(50, results.size());
+			for (int i = 0; i < results.size(); i++) {
+				BatchResult result = results.get(i);
+				assertEquals(i, result.getIndex());
+				assertSame(inputs.get(i), result.getInput());
+				if (i == 25) {
+					assertFalse(result.isSuccessful());
+					assertNotNull(result.getException());
+				}
+				else {
+					assertTrue(result.isSuccessful());
+					assertNotNull(result.getOutput().get("body/AddResponse/result"));
+				}
+			}
+			assertEquals(49, server.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
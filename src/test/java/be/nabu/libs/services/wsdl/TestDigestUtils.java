@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import junit.framework.TestCase;
+
+public class TestDigestUtils extends TestCase {
+
+	public void testSha256() {
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", DigestUtils.toHex(DigestUtils.sha256("abc")));
+		assertEquals("ba7816bf8f01cfea", DigestUtils.toHex(DigestUtils.sha256("abc"), 8));
+		assertEquals("00ff7f80", DigestUtils.toHex(new byte [] { 0, -1, 127, -128 }));
+	}
+}
@@ -0,0 +1,143 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.SAXException;
+
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.api.WSDLDefinition;
+import be.nabu.libs.wsdl.parser.WSDLParser;
+import be.nabu.utils.io.IOUtils;
+
+public class TestEnvelopeTemplate extends TestCase {
+
+	public void testPrerenderedEnvelope() throws SAXException, IOException, ParseException, URISyntaxException, ParserConfigurationException {
+		WSDLParser parser = new WSDLParser(Thread.currentThread().getContextClassLoader().getResourceAsStream("example.wsdl"), false);
+		WSDLDefinition definition = parser.getDefinition();
+		BindingOperation operation = definition.getBindings().get(0).getOperations().get(0);
+		WSDLService service = new WSDLService(operation.getName(), operation, new HTTPClientProvider() {
+			@Override
+			public HTTPClient newHTTPClient(String transactionId) {
+				return TestOperation.newClient();
+			}
+		}, Charset.forName("UTF-8"));
+
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/" + operation.getName() + "/x", 5);
+		input.set("body/" + operation.getName() + "/y", 6);
+
+		assertNotNull(service.getEnvelopeTemplate());
+		byte [] prerendered = IOUtils.toBytes(service.newInstance().buildInput(input, Charset.forName("UTF-8")));
+
+		service.setPrerenderEnvelope(false);
+		assertNull(service.getEnvelopeTemplate());
+		byte [] marshalled = IOUtils.toBytes(service.newInstance().buildInput(input, Charset.forName("UTF-8")));
+
+		ComplexContent first = parse(service, prerendered);
+		ComplexContent second = parse(service, marshalled);
+		assertEquals(second.get("Body/" + operation.getName() + "/x"), first.get("Body/" + operation.getName() + "/x"));
+		assertEquals(second.get("Body/" + operation.getName() + "/y"), first.get("Body/" + operation.getName() + "/y"));
+		assertNotNull(first.get("Body/" + operation.getName() + "/x"));
+	}
+
+	/**
+	 * The template must produce exactly the same bytes as marshalling the whole envelope, also with header parts and multiple body parts
+	 */
+	public void testSameBytes() throws Exception {
+		WSDLService service = TestOperation.newService("orders.wsdl", "PlaceOrder", TestOperation.newProvider());
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("header/Context/tenant", "acme");
+		input.set("header/Context/locale", "nl-BE");
+		input.set("body/Order/id", "order-1");
+		input.set("body/Order/quantity", 3);
+		input.set("body/Options/priority", true);
+		
+		assertNotNull(service.getEnvelopeTemplate());
+		assertTrue(service.getEnvelopeTemplate().canWrite(input));
+		for (Charset charset : new Charset[] { Charset.forName("UTF-8"), Charset.forName("UTF-16"), Charset.forName("x-UTF-16LE-BOM") }) {
+			service.setPrerenderEnvelope(true);
+			byte [] prerendered = IOUtils.toBytes(service.newInstance().buildInput(input, charset));
+			service.setPrerenderEnvelope(false);
+			byte [] marshalled = IOUtils.toBytes(service.newInstance().buildInput(input, charset));
+			assertEquals(new String(marshalled, charset), new String(prerendered, charset));
+			assertTrue(Arrays.equals(marshalled, prerendered));
+			// a charset with a byte order mark only writes it once, at the very start (decoding drops that one)
+			assertEquals(-1, new String(prerendered, charset).indexOf('\uFEFF'));
+		}
+		
+		// without the optional header the header wrapper is left out in both cases
+		input.set("header/Context", null);
+		service.setPrerenderEnvelope(true);
+		byte [] prerendered = IOUtils.toBytes(service.newInstance().buildInput(input, Charset.forName("UTF-8")));
+		service.setPrerenderEnvelope(false);
+		byte [] marshalled = IOUtils.toBytes(service.newInstance().buildInput(input, Charset.forName("UTF-8")));
+		assertEquals(new String(marshalled, "UTF-8"), new String(prerendered, "UTF-8"));
+	}
+	
+	public void testByteOrderMarkLength() {
+		assertEquals(0, EnvelopeTemplate.getByteOrderMarkLength(Charset.forName("UTF-8")));
+		assertEquals(2, EnvelopeTemplate.getByteOrderMarkLength(Charset.forName("UTF-16")));
+		assertEquals(0, EnvelopeTemplate.getByteOrderMarkLength(Charset.forName("UTF-16LE")));
+		assertEquals(2, EnvelopeTemplate.getByteOrderMarkLength(Charset.forName("x-UTF-16LE-BOM")));
+	}
+	
+	public void testDeclarationFilter() throws IOException {
+		assertEquals("<a>b</a>", filter("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a>b</a>"));
+		assertEquals("<a>b</a>", filter("<a>b</a>"));
+		// processing instructions that are not the declaration are kept
+		assertEquals("<?xm-stylesheet?><a/>", filter("<?xm-stylesheet?><a/>"));
+		assertEquals("<", filter("<"));
+		// split over several writes
+		StringWriter result = new StringWriter();
+		EnvelopeTemplate.DeclarationFilter filter = new EnvelopeTemplate.DeclarationFilter(result);
+		for (char character : "<?xml version=\"1.0\"?> <a/>".toCharArray()) {
+			filter.write(character);
+		}
+		filter.flush();
+		assertEquals("<a/>", result.toString());
+	}
+	
+	private static String filter(String content) throws IOException {
+		StringWriter result = new StringWriter();
+		EnvelopeTemplate.DeclarationFilter filter = new EnvelopeTemplate.DeclarationFilter(result);
+		filter.write(content);
+		filter.close();
+		return result.toString();
+	}
+
+	private static ComplexContent parse(WSDLService service, byte [] bytes) throws IOException, ParseException {
+		XMLBinding binding = new XMLBinding(service.getRequestEnvelope(), Charset.forName("UTF-8"));
+		return binding.unmarshal(new ByteArrayInputStream(bytes), new Window[0]);
+	}
+}
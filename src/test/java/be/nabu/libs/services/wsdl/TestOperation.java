@@ -80,6 +80,26 @@ public class TestOperation {
 		}
 	}
 
+	public static WSDLService newService(String resource, String operationName, HTTPClientProvider provider) throws SAXException, IOException, ParseException, URISyntaxException, ParserConfigurationException {
+		WSDLParser parser = new WSDLParser(Thread.currentThread().getContextClassLoader().getResourceAsStream(resource), false);
+		WSDLDefinition definition = parser.getDefinition();
+		for (BindingOperation operation : definition.getBindings().get(0).getOperations()) {
+			if (operationName == null || operation.getName().equals(operationName)) {
+				return new WSDLService(operation.getName(), operation, provider, Charset.forName("UTF-8"));
+			}
+		}
+		throw new IllegalArgumentException("Could not find operation: " + operationName);
+	}
+	
+	public static HTTPClientProvider newProvider() {
+		return new HTTPClientProvider() {
+			@Override
+			public HTTPClient newHTTPClient(String transactionId) {
+				return newClient();
+			}
+		};
+	}
+
 	public static HTTPClient newClient() {
 		SSLContext context = null;
 		HTTPClient client = new DefaultHTTPClient(
@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.http.PooledHTTPClientProvider;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.parser.WSDLParser;
+
+public class TestStreaming extends TestCase {
+
+	public void testStreaming() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", new PooledHTTPClientProvider(TestOperation.newProvider()));
+			service.setEndpoint(server.getEndpoint());
+			service.setStreamRequests(true);
+			service.setStreamBufferSize(64);
+			ComplexContent output = service.newInstance().execute(null, newInput(service));
+			assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+			assertEquals(1, server.getCompleted());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * With a single thread, the call itself occupies the executor of the service while it reads the streamed request
+	 */
+	public void testBoundedExecutor() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		ExecutorService executor = WSDLExecutors.newBoundedExecutor(1);
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", new PooledHTTPClientProvider(TestOperation.newProvider()));
+			service.setEndpoint(server.getEndpoint());
+			service.setStreamRequests(true);
+			service.setStreamBufferSize(64);
+			service.setExecutor(executor);
+			ComplexContent output = service.newInstance().executeAsync(null, newInput(service)).get(10, TimeUnit.SECONDS);
+			assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+		}
+		finally {
+			executor.shutdownNow();
+			server.stop();
+		}
+	}
+	
+	/**
+	 * If marshalling fails halfway, the chunked request must not be terminated or the server would process half an envelope
+	 */
+	public void testMarshalFailure() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = newFailingService(new PooledHTTPClientProvider(TestOperation.newProvider()));
+			service.setEndpoint(server.getEndpoint());
+			service.setStreamRequests(true);
+			service.setStreamBufferSize(1024);
+			try {
+				service.newInstance().execute(null, newInput(service));
+				fail("The call should fail");
+			}
+			catch (ServiceException e) {
+				// expected
+			}
+			// give the server the time to process whatever it got
+			Thread.sleep(500);
+			assertEquals(0, server.getCompleted());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * A service that writes part of the envelope, more than fits in the pipe, and then fails
+	 */
+	private static WSDLService newFailingService(HTTPClientProvider provider) throws Exception {
+		WSDLParser parser = new WSDLParser(Thread.currentThread().getContextClassLoader().getResourceAsStream("example.wsdl"), false);
+		for (BindingOperation operation : parser.getDefinition().getBindings().get(0).getOperations()) {
+			if (operation.getName().equals("Add")) {
+				return new WSDLService(operation.getName(), operation, provider, Charset.forName("UTF-8")) {
+					@Override
+					public WSDLServiceInstance newInstance() {
+						return new WSDLServiceInstance(this) {
+							@Override
+							void writeInput(ComplexContent input, OutputStream output, Charset charset, long [] timings) throws IOException {
+								output.write("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><!--".getBytes(charset));
+								byte [] padding = new byte[1024];
+								Arrays.fill(padding, (byte) 'x');
+								for (int i = 0; i < 32; i++) {
+									output.write(padding);
+								}
+								throw new IOException("Marshalling failed");
+							}
+						};
+					}
+				};
+			}
+		}
+		throw new IllegalArgumentException("Could not find the Add operation");
+	}
+	
+	private static ComplexContent newInput(WSDLService service) {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/Add/x", 5);
+		input.set("body/Add/y", 6);
+		return input;
+	}
+}
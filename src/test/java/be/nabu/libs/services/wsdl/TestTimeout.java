@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.http.PooledHTTPClientProvider;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestTimeout extends TestCase {
+
+	public void testTimeout() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(2000);
+		server.start();
+		try {
+			PooledHTTPClientProvider provider = new PooledHTTPClientProvider(TestOperation.newProvider());
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", provider);
+			service.setEndpoint(server.getEndpoint());
+			service.setTimeout(200);
+			try {
+				service.newInstance().execute(null, newInput(service));
+				fail("The call should time out");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-7", e.getCode());
+			}
+			// the connection is in an unknown state and must not be reused
+			String key = PooledHTTPClientProvider.getKey(new java.net.URI(server.getEndpoint()));
+			assertEquals(0, provider.getStatistics(key).getIdle());
+			assertEquals(0, provider.getStatistics(key).getLeased());
+			
+			// the asynchronous caller is released at the deadline
+			long started = System.currentTimeMillis();
+			try {
+				service.newInstance().executeAsync(null, newInput(service)).get(10, TimeUnit.SECONDS);
+				fail("The call should time out");
+			}
+			catch (ExecutionException e) {
+				assertEquals("SOAP-7", ((ServiceException) e.getCause()).getCode());
+			}
+			assertTrue(System.currentTimeMillis() - started < 1500);
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	public void testInputOverride() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(300);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setTimeout(50);
+			ComplexContent input = newInput(service);
+			input.set("timeout", 5000l);
+			ComplexContent output = service.newInstance().executeAsync(null, input).get(10, TimeUnit.SECONDS);
+			assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	private static ComplexContent newInput(WSDLService service) {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/Add/x", 5);
+		input.set("body/Add/y", 6);
+		return input;
+	}
+}
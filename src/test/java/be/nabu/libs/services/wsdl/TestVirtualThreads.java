@@ -0,0 +1,176 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestVirtualThreads extends TestCase {
+
+	/**
+	 * The tests that need virtual threads are skipped on JVMs that don't have them, the fallback is covered by {@link #testExecutorMode()}
+	 */
+	public static Test suite() {
+		TestSuite suite = new TestSuite(TestVirtualThreads.class.getName());
+		suite.addTest(TestSuite.createTest(TestVirtualThreads.class, "testExecutorMode"));
+		suite.addTest(TestSuite.createTest(TestVirtualThreads.class, "testFallbackCalls"));
+		if (WSDLExecutors.isVirtualThreadSupported()) {
+			suite.addTest(TestSuite.createTest(TestVirtualThreads.class, "testPipe"));
+			suite.addTest(TestSuite.createTest(TestVirtualThreads.class, "testConcurrentCalls"));
+		}
+		else {
+			System.err.println("Skipping the virtual thread tests, they are not supported by this JVM");
+		}
+		return suite;
+	}
+
+	public void testExecutorMode() throws InterruptedException {
+		WSDLService service = new WSDLService("test", null, TestOperation.newProvider(), null);
+		service.setUseVirtualThreads(true);
+		Executor executor = service.getExecutor();
+		assertNotNull(executor);
+		final AtomicBoolean virtual = new AtomicBoolean();
+		final CountDownLatch latch = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				virtual.set(WSDLExecutors.isVirtual(Thread.currentThread()));
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		// on older JVMs we fall back to platform threads
+		assertEquals(WSDLExecutors.isVirtualThreadSupported(), virtual.get());
+	}
+
+	/**
+	 * The pipe does not use monitors, if it did, this would pin the carrier threads of the virtual threads
+	 */
+	public void testPipe() throws Exception {
+		final BlockingPipe pipe = new BlockingPipe(16);
+		final byte [] content = new byte[10000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		WSDLExecutors.getVirtualThreadExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OutputStream output = pipe.getOutputStream();
+					for (int i = 0; i < content.length; i += 7) {
+						output.write(content, i, Math.min(7, content.length - i));
+					}
+					output.close();
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		InputStream input = pipe.getInputStream();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte [] buffer = new byte[13];
+		int read;
+		while ((read = input.read(buffer)) >= 0) {
+			result.write(buffer, 0, read);
+		}
+		assertTrue(java.util.Arrays.equals(content, result.toByteArray()));
+	}
+
+	/**
+	 * Each call blocks for the latency of the stub server, with a virtual thread per call they can all be outstanding at the same time.
+	 * If anything in the call path pinned the carrier threads, only as many calls as there are carriers could be outstanding at once.
+	 * The latency is long enough for all the calls to be sent before the first one is answered.
+	 */
+	public void testConcurrentCalls() throws Exception {
+		long latency = 5000;
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(latency);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setUseVirtualThreads(true);
+			// by default there are as many carriers as there are processors, we send many more calls than that
+			int calls = Math.max(200, Runtime.getRuntime().availableProcessors() * 16);
+			List<CompletableFuture<ComplexContent>> futures = new ArrayList<CompletableFuture<ComplexContent>>();
+			for (int i = 0; i < calls; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				futures.add(service.newInstance().executeAsync(null, input));
+			}
+			for (CompletableFuture<ComplexContent> future : futures) {
+				assertEquals(11.0, ((Number) future.get(60, TimeUnit.SECONDS).get("body/AddResponse/result")).doubleValue(), 0.001);
+			}
+			assertEquals(calls, server.getRequests());
+			assertEquals(calls, server.getMaxInFlight());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * Without virtual threads the calls run on a bounded pool of platform threads, each call holds one for the duration of the http exchange.
+	 * The fallback is requested explicitly so this also runs on JVMs that do support virtual threads.
+	 */
+	public void testFallbackCalls() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(500);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setUseVirtualThreads(true);
+			service.setMaxPlatformThreads(4);
+			Executor executor = service.getExecutor(null);
+			assertNotSame(WSDLExecutors.getVirtualThreadExecutor(), executor);
+			List<CompletableFuture<ComplexContent>> futures = new ArrayList<CompletableFuture<ComplexContent>>();
+			for (int i = 0; i < 16; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				futures.add(service.newInstance().executeAsync(null, input, executor));
+			}
+			for (CompletableFuture<ComplexContent> future : futures) {
+				assertEquals(11.0, ((Number) future.get(60, TimeUnit.SECONDS).get("body/AddResponse/result")).doubleValue(), 0.001);
+			}
+			assertEquals(16, server.getRequests());
+			// the pool is used to the full but never beyond
+			assertEquals(4, server.getMaxInFlight());
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
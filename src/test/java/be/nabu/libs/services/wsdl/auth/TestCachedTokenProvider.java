@@ -0,0 +1,227 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.auth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import be.nabu.libs.http.api.WebAuthorizationType;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.resilience.CircuitBreakerPolicy;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestCachedTokenProvider extends TestCase {
+
+	public void testConcurrentFetch() throws Exception {
+		StubSoapServer tokenServer = new StubSoapServer("{\"access_token\":\"abc\",\"token_type\":\"bearer\",\"expires_in\":3600}");
+		tokenServer.setLatency(300);
+		tokenServer.start();
+		ExecutorService executor = Executors.newFixedThreadPool(20);
+		try {
+			final CachedTokenProvider provider = new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI(tokenServer.getEndpoint())));
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return provider.getToken(null, "client", "secret");
+					}
+				}));
+			}
+			for (Future<String> future : futures) {
+				assertEquals("abc", future.get());
+			}
+			assertEquals(1, tokenServer.getRequests());
+			assertTrue(tokenServer.getLastHeader("Authorization").startsWith("Basic "));
+			
+			// other credentials get their own token
+			provider.getToken(null, "other", "secret");
+			assertEquals(2, tokenServer.getRequests());
+		}
+		finally {
+			executor.shutdown();
+			tokenServer.stop();
+		}
+	}
+	
+	public void testBackgroundRefresh() throws Exception {
+		StubSoapServer tokenServer = new StubSoapServer("{\"access_token\":\"abc\",\"expires_in\":2}");
+		tokenServer.start();
+		try {
+			CachedTokenProvider provider = new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI(tokenServer.getEndpoint())));
+			assertEquals("abc", provider.getToken(null, "client", "secret"));
+			// past half the lifetime the cached token is still returned but a refresh is started
+			Thread.sleep(1200);
+			tokenServer.setLatency(500);
+			long started = System.currentTimeMillis();
+			assertEquals("abc", provider.getToken(null, "client", "secret"));
+			assertEquals("abc", provider.getToken(null, "client", "secret"));
+			assertTrue(System.currentTimeMillis() - started < 400);
+			Thread.sleep(1000);
+			assertEquals(2, tokenServer.getRequests());
+			assertEquals(2, provider.getFetches());
+		}
+		finally {
+			tokenServer.stop();
+		}
+	}
+	
+	public void testService() throws Exception {
+		StubSoapServer tokenServer = new StubSoapServer("{\"access_token\":\"abc\",\"expires_in\":3600}");
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		tokenServer.start();
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setUsername("client");
+			service.setPassword("secret");
+			service.setPreemptiveAuthorizationType(WebAuthorizationType.BEARER);
+			service.setTokenProvider(new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI(tokenServer.getEndpoint()))));
+			for (int i = 0; i < 3; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				service.newInstance().execute(null, input);
+				assertEquals("Bearer abc", server.getLastHeader("Authorization"));
+			}
+			assertEquals(1, tokenServer.getRequests());
+		}
+		finally {
+			server.stop();
+			tokenServer.stop();
+		}
+	}
+	
+	public void testRetryBackoff() throws Exception {
+		StubSoapServer tokenServer = new StubSoapServer("{\"error\":\"unavailable\"}");
+		tokenServer.setStatus(503);
+		tokenServer.start();
+		try {
+			CachedTokenProvider provider = new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI(tokenServer.getEndpoint())));
+			provider.setRetryBackoff(500);
+			for (int i = 0; i < 5; i++) {
+				try {
+					provider.getToken(null, "client", "secret");
+					fail("The fetch should fail");
+				}
+				catch (IOException e) {
+					// expected
+				}
+			}
+			// the callers that came after the failure did not start fetches of their own
+			assertEquals(1, tokenServer.getRequests());
+			Thread.sleep(600);
+			tokenServer.setStatus(200);
+			tokenServer.setResponse("{\"access_token\":\"abc\",\"expires_in\":3600}");
+			assertEquals("abc", provider.getToken(null, "client", "secret"));
+			assertEquals(2, tokenServer.getRequests());
+		}
+		finally {
+			tokenServer.stop();
+		}
+	}
+	
+	public void testTimeout() throws Exception {
+		StubSoapServer tokenServer = new StubSoapServer("{\"access_token\":\"abc\",\"expires_in\":3600}");
+		tokenServer.setLatency(1000);
+		tokenServer.start();
+		try {
+			CachedTokenProvider provider = new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI(tokenServer.getEndpoint())));
+			long started = System.currentTimeMillis();
+			try {
+				provider.getToken(null, "client", "secret", 100);
+				fail("The wait should time out");
+			}
+			catch (InterruptedIOException e) {
+				// expected
+			}
+			assertTrue(System.currentTimeMillis() - started < 800);
+			// the fetch went on in the background
+			assertEquals("abc", provider.getToken(null, "client", "secret", 5000));
+			assertEquals(1, tokenServer.getRequests());
+		}
+		finally {
+			tokenServer.stop();
+		}
+	}
+	
+	public void testEviction() throws Exception {
+		StubSoapServer tokenServer = new StubSoapServer("{\"access_token\":\"abc\",\"expires_in\":3600}");
+		tokenServer.start();
+		try {
+			CachedTokenProvider provider = new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI(tokenServer.getEndpoint())));
+			provider.setMaxEntries(3);
+			for (int i = 0; i < 10; i++) {
+				provider.getToken(null, "client" + i, "secret");
+				assertTrue(provider.size() <= 3);
+			}
+			// the most recent one is still cached
+			provider.getToken(null, "client9", "secret");
+			assertEquals(10, tokenServer.getRequests());
+		}
+		finally {
+			tokenServer.stop();
+		}
+	}
+	
+	/**
+	 * The token is resolved before the request is sent, a failing token endpoint does not count against the soap endpoint
+	 */
+	public void testTokenFailure() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setUsername("client");
+			service.setPassword("secret");
+			service.setPreemptiveAuthorizationType(WebAuthorizationType.BEARER);
+			CircuitBreakerPolicy breakers = new CircuitBreakerPolicy();
+			service.setCircuitBreakerPolicy(breakers);
+			// nothing listens on port 1
+			service.setTokenProvider(new CachedTokenProvider(new HTTPTokenSource(TestOperation.newProvider(), new URI("http://127.0.0.1:1/token"))));
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			try {
+				service.newInstance().execute(null, input);
+				fail("The call should fail");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-8", e.getCode());
+			}
+			assertEquals(0, server.getRequests());
+			assertTrue(breakers.getCircuitBreakers().isEmpty());
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
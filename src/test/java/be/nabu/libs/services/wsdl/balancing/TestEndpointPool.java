@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.wsdl.api.Binding;
+import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.api.WSDLDefinition;
+import be.nabu.libs.wsdl.parser.WSDLParser;
+
+public class TestEndpointPool extends TestCase {
+
+	public void testRoundRobin() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("http://a", "http://b", "http://c", "http://a"));
+		assertEquals(3, pool.size());
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < 30; i++) {
+			String url = pool.select(null).getUrl();
+			counts.put(url, counts.containsKey(url) ? counts.get(url) + 1 : 1);
+		}
+		assertEquals(Integer.valueOf(10), counts.get("http://a"));
+		assertEquals(Integer.valueOf(10), counts.get("http://b"));
+		assertEquals(Integer.valueOf(10), counts.get("http://c"));
+	}
+	
+	public void testLeastOutstanding() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("http://a", "http://b"));
+		pool.setSelector(new LeastOutstandingSelector());
+		Endpoint a = pool.getEndpoints().get(0);
+		pool.begin(a);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("http://b", pool.select(null).getUrl());
+		}
+	}
+	
+	public void testLatency() {
+		EndpointPool pool = new EndpointPool(Arrays.asList("http://a", "http://b"));
+		pool.setSelector(new LatencySelector());
+		Endpoint a = pool.getEndpoints().get(0), b = pool.getEndpoints().get(1);
+		for (int i = 0; i < 5; i++) {
+			pool.begin(a);
+			pool.end(a, 50000000, 200, null);
+			pool.begin(b);
+			pool.end(b, 1000000, 200, null);
+		}
+		assertTrue(a.getLatency() > b.getLatency());
+		for (int i = 0; i < 10; i++) {
+			assertSame(b, pool.select(null));
+		}
+	}
+	
+	public void testQuarantine() throws InterruptedException {
+		EndpointPool pool = new EndpointPool(Arrays.asList("http://a", "http://b"));
+		pool.setFailureThreshold(2);
+		pool.setQuarantine(50);
+		Endpoint a = pool.getEndpoints().get(0);
+		pool.begin(a);
+		pool.end(a, 0, 503, null);
+		assertTrue(a.isHealthy());
+		pool.begin(a);
+		pool.end(a, 0, 0, new ConnectException());
+		assertFalse(a.isHealthy());
+		assertEquals(2, a.getFailures());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("http://b", pool.select(null).getUrl());
+		}
+		// if everything else is excluded, the unhealthy endpoint is still used
+		assertSame(a, pool.select(Arrays.asList(pool.getEndpoints().get(1))));
+		Thread.sleep(100);
+		assertTrue(a.isHealthy());
+		assertEquals(0, a.getOutstanding());
+	}
+	
+	/**
+	 * Only the ports of the binding that contains the operation are pooled, the admin port does not support it
+	 */
+	public void testFromOperation() throws Exception {
+		WSDLDefinition definition = new WSDLParser(Thread.currentThread().getContextClassLoader().getResourceAsStream("replicas.wsdl"), false).getDefinition();
+		BindingOperation operation = null;
+		for (Binding binding : definition.getBindings()) {
+			for (BindingOperation candidate : binding.getOperations()) {
+				if (candidate.getName().equals("Add")) {
+					operation = candidate;
+				}
+			}
+		}
+		EndpointPool pool = EndpointPool.fromOperation(operation);
+		assertEquals(2, pool.size());
+		assertEquals("http://math1.example.org/math", pool.getEndpoints().get(0).getUrl());
+		assertEquals("http://math2.example.org/math", pool.getEndpoints().get(1).getUrl());
+		assertEquals(3, EndpointPool.fromDefinition(definition).size());
+	}
+	
+	/**
+	 * Nothing listens on port 1 so every request to it fails over to the stub server
+	 */
+	public void testFailover() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			EndpointPool pool = new EndpointPool(Arrays.asList("http://127.0.0.1:1/math", server.getEndpoint()));
+			pool.setQuarantine(60000);
+			service.setEndpointPool(pool);
+			for (int i = 0; i < 10; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				ComplexContent output = service.newInstance().execute(null, input);
+				assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+			}
+			assertEquals(10, server.getRequests());
+			Endpoint dead = pool.getEndpoints().get(0);
+			assertFalse(dead.isHealthy());
+			// once quarantined, the dead endpoint is no longer tried
+			assertEquals(pool.getFailureThreshold(), dead.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
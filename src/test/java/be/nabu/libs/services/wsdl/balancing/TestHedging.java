@@ -0,0 +1,156 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.balancing;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.resilience.RateLimiter;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestHedging extends TestCase {
+
+	public void testAdaptiveDelay() {
+		HedgingPolicy policy = new HedgingPolicy();
+		policy.setDelay(500);
+		policy.setPercentile(0.9);
+		policy.setMinSamples(10);
+		assertEquals(500, policy.getEffectiveDelay());
+		for (int i = 0; i < 100; i++) {
+			policy.record(TimeUnit.MILLISECONDS.toNanos(i < 90 ? 10 : 200), false);
+		}
+		long delay = policy.getEffectiveDelay();
+		// the histogram has a relative error of 1/16
+		assertTrue("Unexpected delay: " + delay, delay >= 10 && delay <= 11);
+	}
+	
+	/**
+	 * Requests that go to the slow node first should be answered by the hedged request to the fast node
+	 */
+	public void testHedging() throws Exception {
+		StubSoapServer slow = StubSoapServer.newCalculator("Add", 11);
+		slow.setLatency(3000);
+		slow.start();
+		StubSoapServer fast = StubSoapServer.newCalculator("Add", 11);
+		fast.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpointPool(new EndpointPool(Arrays.asList(slow.getEndpoint(), fast.getEndpoint())));
+			HedgingPolicy policy = new HedgingPolicy();
+			policy.setDelay(50);
+			service.setHedgingPolicy(policy);
+			long started = System.currentTimeMillis();
+			for (int i = 0; i < 4; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				ComplexContent output = i % 2 == 0 
+					? service.newInstance().execute(null, input)
+					: service.newInstance().executeAsync(null, input).get(10, TimeUnit.SECONDS);
+				assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+			}
+			// without hedging, two of the calls would wait for the slow node
+			assertTrue(System.currentTimeMillis() - started < 3000);
+			// every call reaches the fast node once, either directly or hedged
+			assertEquals(4, fast.getRequests());
+			assertTrue(policy.getHedges() > 0);
+			assertEquals(policy.getHedges(), policy.getWins());
+		}
+		finally {
+			slow.stop();
+			fast.stop();
+		}
+	}
+	
+	/**
+	 * A hedged win is recorded as the time the caller waited, if only the latency of the hedged request itself were recorded the delay would keep shrinking
+	 */
+	public void testDelayDoesNotDrift() throws Exception {
+		StubSoapServer slow = StubSoapServer.newCalculator("Add", 11);
+		slow.setLatency(1000);
+		slow.start();
+		StubSoapServer fast = StubSoapServer.newCalculator("Add", 11);
+		fast.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpointPool(new EndpointPool(Arrays.asList(slow.getEndpoint(), fast.getEndpoint())));
+			HedgingPolicy policy = new HedgingPolicy();
+			policy.setDelay(100);
+			policy.setPercentile(0.9);
+			policy.setMinSamples(4);
+			service.setHedgingPolicy(policy);
+			for (int i = 0; i < 8; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				service.newInstance().execute(null, input);
+			}
+			assertTrue(policy.getWins() > 0);
+			// half of the calls waited at least the delay before the hedged request answered, so that is what the percentile has to reflect
+			long delay = policy.getEffectiveDelay();
+			assertTrue("Unexpected delay: " + delay, delay >= 100);
+		}
+		finally {
+			slow.stop();
+			fast.stop();
+		}
+	}
+	
+	/**
+	 * The hedged request is done for the same user so it has to come out of the same bucket of a per user rate limit
+	 */
+	public void testRateLimitedPerUser() throws Exception {
+		StubSoapServer first = StubSoapServer.newCalculator("Add", 11);
+		first.setLatency(500);
+		first.start();
+		StubSoapServer second = StubSoapServer.newCalculator("Add", 11);
+		second.setLatency(500);
+		second.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpointPool(new EndpointPool(Arrays.asList(first.getEndpoint(), second.getEndpoint())));
+			service.setUsername("alice");
+			HedgingPolicy policy = new HedgingPolicy();
+			policy.setDelay(50);
+			service.setHedgingPolicy(policy);
+			RateLimiter limiter = new RateLimiter(0.01, 2);
+			limiter.setScope(RateLimiter.Scope.USERNAME);
+			limiter.setMaxWait(0);
+			service.setRateLimiter(limiter);
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			ComplexContent output = service.newInstance().execute(null, input);
+			assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+			assertEquals(1, policy.getHedges());
+			// both attempts were counted for alice, there is no anonymous bucket that the hedge could slip through
+			assertEquals(1, limiter.getTokenBuckets().size());
+			assertTrue(limiter.getTokenBuckets().containsKey("alice"));
+			// the burst of 2 is used up by the primary and the hedged attempt
+			assertFalse(limiter.acquire(first.getEndpoint(), "alice"));
+		}
+		finally {
+			first.stop();
+			second.stop();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestRequestCoalescer extends TestCase {
+
+	public void testCoalescing() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(500);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			RequestCoalescer coalescer = new RequestCoalescer();
+			service.setRequestCoalescer(coalescer);
+			List<CompletableFuture<ComplexContent>> futures = new ArrayList<CompletableFuture<ComplexContent>>();
+			for (int i = 0; i < 20; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				// half of the requests differ
+				input.set("body/Add/x", i % 2 == 0 ? 5 : 6);
+				input.set("body/Add/y", 6);
+				futures.add(service.newInstance().executeAsync(null, input));
+			}
+			for (CompletableFuture<ComplexContent> future : futures) {
+				assertEquals(11.0, ((Number) future.get(30, TimeUnit.SECONDS).get("body/AddResponse/result")).doubleValue(), 0.001);
+			}
+			assertEquals(2, server.getRequests());
+			assertEquals(2, coalescer.getLeaders());
+			assertEquals(18, coalescer.getCoalesced());
+			assertEquals(0, coalescer.getInFlight());
+			
+			// once the call is done, nothing is kept
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			service.newInstance().execute(null, input);
+			assertEquals(3, server.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * Even if the leader fails with an error rather than an exception, the callers waiting for it are released
+	 */
+	public void testLeaderError() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<ComplexContent> leader = executor.submit(() -> coalescer.execute("key", () -> {
+				started.countDown();
+				await(release);
+				throw new AssertionError("Leader failed");
+			}));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			Future<ComplexContent> follower = executor.submit(() -> coalescer.execute("key", () -> {
+				throw new IllegalStateException("The follower should not call");
+			}));
+			// give the follower the time to start waiting
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<ComplexContent> future : Arrays.asList(leader, follower)) {
+				try {
+					future.get(10, TimeUnit.SECONDS);
+					fail("The call should fail");
+				}
+				catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof AssertionError);
+				}
+			}
+			assertEquals(0, coalescer.getInFlight());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	public void testFollowerTimeout() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		try {
+			Future<ComplexContent> leader = executor.submit(() -> coalescer.execute("key", () -> {
+				started.countDown();
+				await(release);
+				return null;
+			}));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			long begin = System.currentTimeMillis();
+			try {
+				coalescer.execute("key", () -> null, 100);
+				fail("The follower should time out");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-7", e.getCode());
+			}
+			assertTrue(System.currentTimeMillis() - begin < 5000);
+			try {
+				coalescer.executeAsync("key", () -> CompletableFuture.completedFuture(null), 100).get(10, TimeUnit.SECONDS);
+				fail("The follower should time out");
+			}
+			catch (ExecutionException e) {
+				assertEquals("SOAP-7", ((ServiceException) e.getCause()).getCode());
+			}
+			// the timeout is completed on the executor so the callbacks of the caller don't hold up the scheduler
+			ExecutorService completions = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "completions"));
+			try {
+				CompletableFuture<String> thread = coalescer.executeAsync("key", () -> CompletableFuture.completedFuture(null), 100, completions)
+					.handle((output, exception) -> Thread.currentThread().getName());
+				assertEquals("completions", thread.get(10, TimeUnit.SECONDS));
+			}
+			finally {
+				completions.shutdownNow();
+			}
+			// the leader is not affected
+			release.countDown();
+			assertNull(leader.get(10, TimeUnit.SECONDS));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.services.wsdl.api.WSSecurityType;
+import be.nabu.libs.services.wsdl.ws.WSSecurity;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestResponseCache extends TestCase {
+
+	public void testEviction() throws InterruptedException {
+		ResponseCache cache = new ResponseCache();
+		cache.setMaxEntries(2);
+		cache.put("a", null, false);
+		cache.put("b", null, false);
+		// touch a so b becomes the eldest
+		assertNotNull(cache.get("a"));
+		cache.put("c", null, false);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertEquals(1, cache.getEvictions());
+		
+		cache.setTimeToLive(10);
+		cache.put("d", null, false);
+		Thread.sleep(50);
+		assertNull(cache.get("d"));
+		assertEquals(1, cache.getExpirations());
+	}
+	
+	public void testFaults() {
+		ResponseCache cache = new ResponseCache();
+		cache.put("a", null, true);
+		cache.putFault("b", new ServiceException("SOAP-2", "test"));
+		assertEquals(0, cache.size());
+		cache.setFaultTimeToLive(1000);
+		cache.putFault("b", new ServiceException("SOAP-2", "test"));
+		assertEquals("SOAP-2", cache.get("b").getException().getCode());
+	}
+	
+	public void testService() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			ResponseCache cache = new ResponseCache();
+			cache.setCacheableOperations(new HashSet<String>(Arrays.asList("Add")));
+			service.setResponseCache(cache);
+			for (int i = 0; i < 5; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				// the transaction id is not part of the key
+				input.set("transactionId", "tx" + i);
+				assertEquals(11.0, ((Number) service.newInstance().execute(null, input).get("body/AddResponse/result")).doubleValue(), 0.001);
+			}
+			assertEquals(1, server.getRequests());
+			assertEquals(4, cache.getHits());
+			
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 6);
+			input.set("body/Add/y", 5);
+			service.newInstance().execute(null, input);
+			assertEquals(2, server.getRequests());
+			
+			// operations that are not marked as cacheable always go to the server
+			cache.getCacheableOperations().clear();
+			service.newInstance().execute(null, input);
+			assertEquals(3, server.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * Responses are only shared by callers with the same credentials, not just the same username
+	 */
+	public void testCredentials() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			ResponseCache cache = new ResponseCache();
+			cache.setCacheableOperations(new HashSet<String>(Arrays.asList("Add")));
+			service.setResponseCache(cache);
+			service.newInstance().execute(null, newInput(service, "alice", "secret"));
+			service.newInstance().execute(null, newInput(service, "alice", "secret"));
+			assertEquals(1, server.getRequests());
+			// the same user with another password does not get the cached response
+			service.newInstance().execute(null, newInput(service, "alice", "wrong"));
+			assertEquals(2, server.getRequests());
+			service.newInstance().execute(null, newInput(service, "alice", null));
+			assertEquals(3, server.getRequests());
+			assertEquals(1, cache.getHits());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * The key is a digest of the request that is actually sent, but the security header has a new nonce and timestamp for every call so it is left out
+	 */
+	public void testSecurityHeaderNotInKey() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			WSSecurity security = new WSSecurity();
+			security.setWsSecurityType(WSSecurityType.PasswordDigest);
+			security.setTimestampDuration(60000l);
+			service.setExtensions(Arrays.<WSExtension>asList(security));
+			ResponseCache cache = new ResponseCache();
+			cache.setCacheableOperations(new HashSet<String>(Arrays.asList("Add")));
+			service.setResponseCache(cache);
+			service.newInstance().execute(null, newInput(service, "alice", "secret"));
+			service.newInstance().execute(null, newInput(service, "alice", "secret"));
+			assertEquals(1, server.getRequests());
+			assertEquals(1, cache.getHits());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	private static ComplexContent newInput(WSDLService service, String username, String password) {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/Add/x", 5);
+		input.set("body/Add/y", 6);
+		input.set("authentication/username", username);
+		input.set("authentication/password", password);
+		return input;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.http;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import be.nabu.libs.http.api.client.HTTPClient;
+import be.nabu.libs.services.wsdl.HTTPClientProvider;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.api.Window;
+
+public class TestPooledHTTPClientProvider extends TestCase {
+
+	private PooledHTTPClientProvider newProvider() {
+		return new PooledHTTPClientProvider(new HTTPClientProvider() {
+			@Override
+			public HTTPClient newHTTPClient(String transactionId) {
+				return TestOperation.newClient();
+			}
+		});
+	}
+
+	public void testReuse() throws InterruptedException {
+		PooledHTTPClientProvider provider = newProvider();
+		HTTPClient first = provider.lease("http://localhost:80", null);
+		provider.release("http://localhost:80", first, true);
+		HTTPClient second = provider.lease("http://localhost:80", null);
+		assertSame(first, second);
+		provider.release("http://localhost:80", second, false);
+		HTTPClient third = provider.lease("http://localhost:80", null);
+		assertNotSame(first, third);
+		provider.release("http://localhost:80", third, true);
+
+		PooledHTTPClientProvider.PoolStatistics statistics = provider.getStatistics("http://localhost:80");
+		assertEquals(2, statistics.getCreated());
+		assertEquals(1, statistics.getReused());
+		assertEquals(0, statistics.getLeased());
+		assertEquals(1, statistics.getIdle());
+	}
+
+	public void testMaxConnections() throws InterruptedException {
+		PooledHTTPClientProvider provider = newProvider();
+		provider.setMaxConnectionsPerEndpoint(1);
+		provider.setLeaseTimeout(10);
+		HTTPClient first = provider.lease("http://localhost:80", null);
+		assertNotNull(first);
+		assertNull(provider.lease("http://localhost:80", null));
+		// other endpoints have their own pool
+		assertNotNull(provider.lease("http://localhost:81", null));
+		provider.release("http://localhost:80", first, true);
+		assertNotNull(provider.lease("http://localhost:80", null));
+		assertEquals(1, provider.getStatistics("http://localhost:80").getTimeouts());
+	}
+
+	public void testIdleEviction() throws InterruptedException {
+		PooledHTTPClientProvider provider = newProvider();
+		provider.setMaxIdleTime(0);
+		HTTPClient first = provider.lease("http://localhost:80", null);
+		provider.release("http://localhost:80", first, true);
+		Thread.sleep(5);
+		assertEquals(1, provider.getStatistics("http://localhost:80").getIdle());
+		provider.evictIdle();
+		// nothing is left in the pool so it is removed altogether
+		assertNull(provider.getStatistics("http://localhost:80"));
+		assertTrue(provider.getEndpoints().isEmpty());
+	}
+	
+	/**
+	 * Pools per session come and go, the ones that are no longer in use must not pile up
+	 */
+	public void testRemoveEmptyPools() throws InterruptedException {
+		PooledHTTPClientProvider provider = newProvider();
+		provider.setMaxIdleTime(0);
+		URI uri = URI.create("http://localhost:80/service");
+		HTTPClient held = provider.lease(PooledHTTPClientProvider.getSessionKey(uri, "held", "secret"), null);
+		for (int i = 0; i < 100; i++) {
+			String key = PooledHTTPClientProvider.getSessionKey(uri, "user" + i, "secret");
+			provider.release(key, provider.lease(key, null), true);
+			Thread.sleep(1);
+		}
+		// every new key cleans up the pools that went idle before it, a pool with a leased client is kept
+		assertTrue(provider.getEndpoints().size() <= 2);
+		assertNotNull(provider.getStatistics(PooledHTTPClientProvider.getSessionKey(uri, "held", "secret")));
+		provider.release(PooledHTTPClientProvider.getSessionKey(uri, "held", "secret"), held, false);
+		provider.evictIdle();
+		assertTrue(provider.getEndpoints().isEmpty());
+	}
+
+	public void testPrincipalAffinity() throws InterruptedException {
+		PooledHTTPClientProvider provider = newProvider();
+		URI uri = URI.create("http://localhost:80/service");
+		String alice = PooledHTTPClientProvider.getKey(uri, "alice", "secret");
+		String bob = PooledHTTPClientProvider.getKey(uri, "bob", "secret");
+		assertTrue(PooledHTTPClientProvider.isAffine(alice));
+		assertFalse(PooledHTTPClientProvider.isAffine(PooledHTTPClientProvider.getKey(uri)));
+		assertFalse(alice.equals(bob));
+		assertFalse(alice.equals(PooledHTTPClientProvider.getKey(uri, "alice", "changed")));
+		assertFalse(alice.contains("secret"));
+
+		HTTPClient client = provider.lease(alice, null);
+		provider.release(alice, client, true);
+		// another principal never gets a connection that was authenticated for someone else
+		HTTPClient other = provider.lease(bob, null);
+		assertNotSame(client, other);
+		provider.release(bob, other, true);
+		assertSame(client, provider.lease(alice, null));
+		assertEquals(1, provider.getHandshakesAvoided());
+
+		// reuse of anonymous clients does not count
+		HTTPClient anonymous = provider.lease("http://localhost:80", null);
+		provider.release("http://localhost:80", anonymous, true);
+		provider.lease("http://localhost:80", null);
+		assertEquals(1, provider.getHandshakesAvoided());
+	}
+
+	public void testReleaseUnknown() {
+		PooledHTTPClientProvider provider = newProvider();
+		provider.release("http://localhost:80", TestOperation.newClient(), true);
+		// no pool is created and no permit is handed out that was never taken
+		assertNull(provider.getStatistics("http://localhost:80"));
+	}
+
+	public void testResize() throws InterruptedException {
+		PooledHTTPClientProvider provider = newProvider();
+		provider.setMaxConnectionsPerEndpoint(2);
+		HTTPClient first = provider.lease("http://localhost:80", null, 10);
+		HTTPClient second = provider.lease("http://localhost:80", null, 10);
+		assertNull(provider.lease("http://localhost:80", null, 10));
+		// existing pools pick up the new limit
+		provider.setMaxConnectionsPerEndpoint(3);
+		HTTPClient third = provider.lease("http://localhost:80", null, 10);
+		assertNotNull(third);
+		assertEquals(3, provider.getStatistics("http://localhost:80").getLeased());
+		
+		provider.setMaxConnectionsPerEndpoint(1);
+		provider.release("http://localhost:80", first, true);
+		provider.release("http://localhost:80", second, true);
+		// still at the limit until the last one comes back
+		assertNull(provider.lease("http://localhost:80", null, 10));
+		provider.release("http://localhost:80", third, true);
+		assertNotNull(provider.lease("http://localhost:80", null, 10));
+		assertNull(provider.lease("http://localhost:80", null, 10));
+	}
+
+	public void testSessionKey() {
+		URI uri = URI.create("http://localhost:80/service");
+		// the state of clients from a custom factory can not be cleared, so they are not shared between principals
+		PooledHTTPClientProvider provider = newProvider();
+		assertFalse(provider.isClearingState());
+		String alice = provider.getKey(uri, "alice", "secret", false);
+		assertFalse(alice.equals(PooledHTTPClientProvider.getKey(uri)));
+		assertFalse(alice.equals(provider.getKey(uri, "bob", "secret", false)));
+		assertFalse(PooledHTTPClientProvider.isAffine(alice));
+		assertEquals(PooledHTTPClientProvider.getKey(uri, "alice", "secret"), provider.getKey(uri, "alice", "secret", true));
+		
+		// the clients we create ourselves have their cookies cleared when released
+		PooledHTTPClientProvider clearing = new PooledHTTPClientProvider(null, 10000, 10000);
+		assertTrue(clearing.isClearingState());
+		assertEquals(PooledHTTPClientProvider.getKey(uri), clearing.getKey(uri, "alice", "secret", false));
+	}
+	
+	/**
+	 * Windowed content is read after the call returned, the connection has been used for the next call by then
+	 */
+	public void testWindows() throws Exception {
+		StringBuilder response = new StringBuilder("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+			+ "<ns:SearchResponse xmlns:ns=\"http://example.org/search/types/\">");
+		for (int i = 0; i < 100; i++) {
+			response.append("<results><id>" + i + "</id><name>result " + i + "</name></results>");
+		}
+		response.append("</ns:SearchResponse></soap:Body></soap:Envelope>");
+		StubSoapServer server = new StubSoapServer(response.toString());
+		server.start();
+		try {
+			PooledHTTPClientProvider provider = newProvider();
+			provider.setMaxConnectionsPerEndpoint(1);
+			WSDLService service = TestOperation.newService("search.wsdl", "Search", provider);
+			service.setEndpoint(server.getEndpoint());
+			service.setWindows(Arrays.asList(new Window("Body/SearchResponse/results", 10, 10)));
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Search/query", "test");
+			ComplexContent first = service.newInstance().execute(null, input);
+			ComplexContent second = service.newInstance().execute(null, input);
+			for (ComplexContent output : Arrays.asList(first, second)) {
+				for (int i = 0; i < 100; i++) {
+					assertEquals("result " + i, output.get("body/SearchResponse/results[" + i + "]/name"));
+				}
+			}
+			assertEquals(2, server.getRequests());
+			assertEquals(1, provider.getStatistics(PooledHTTPClientProvider.getKey(URI.create(server.getEndpoint()))).getReused());
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.metrics;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.api.InvocationPhase;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestMetrics extends TestCase {
+
+	public void testBuckets() {
+		for (long value : new long [] { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.getIndex(value);
+			assertTrue(value <= LatencyHistogram.getUpperBound(index));
+			assertTrue(index == 0 || value > LatencyHistogram.getUpperBound(index - 1));
+		}
+	}
+	
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i * 1000l);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000000, histogram.getMax());
+		assertEquals(5000000, histogram.getPercentile(0.5), 5000000 / 16);
+		assertEquals(9900000, histogram.getPercentile(0.99), 9900000 / 16);
+		assertEquals(10000000, histogram.getPercentile(1));
+	}
+	
+	public void testWindow() throws InterruptedException {
+		LatencyWindow window = new LatencyWindow(100);
+		for (int i = 0; i < 10; i++) {
+			window.record(1000);
+		}
+		assertEquals(1000, window.getPercentile(0.5, 10), 1000 / 16);
+		assertEquals(-1, window.getPercentile(0.5, 11));
+		// the measurements move to the previous window
+		Thread.sleep(150);
+		assertEquals(1000, window.getPercentile(0.5, 10), 1000 / 16);
+		window.record(5000);
+		assertEquals(1000, window.getPercentile(0.5, 10), 1000 / 16);
+		// after a quiet period they age out without anything being recorded
+		Thread.sleep(350);
+		assertEquals(-1, window.getPercentile(0.5, 1));
+	}
+	
+	public void testCollector() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			MetricsCollector collector = new MetricsCollector();
+			service.setMetricsListener(collector);
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			service.newInstance().execute(null, input);
+			service.newInstance().executeAsync(null, input).join();
+			server.setStatus(500);
+			try {
+				service.newInstance().execute(null, input);
+				fail("Expecting an http error");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-2", e.getCode());
+			}
+			EndpointMetrics metrics = collector.getMetrics(service.getId(), server.getEndpoint());
+			assertNotNull(metrics);
+			assertEquals(3, metrics.getCalls());
+			assertEquals(1, metrics.getErrors());
+			assertEquals(2, metrics.getStatusCount(200));
+			assertEquals(1, metrics.getStatusCount(500));
+			assertEquals(3, metrics.getPhase(InvocationPhase.TRANSPORT).getCount());
+			assertEquals(2, metrics.getPhase(InvocationPhase.PARSE).getCount());
+			assertTrue(metrics.getRequestBytes() > 0);
+			assertTrue(metrics.getResponseBytes() > 0);
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
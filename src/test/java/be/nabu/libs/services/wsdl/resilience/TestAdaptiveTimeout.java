@@ -0,0 +1,143 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestAdaptiveTimeout extends TestCase {
+
+	public void testPolicy() {
+		AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+		policy.setMinSamples(10);
+		policy.setFloor(1);
+		policy.setCeiling(5000);
+		// not enough measurements
+		assertEquals(5000, policy.getTimeout("add", "http://a"));
+		for (int i = 0; i < 100; i++) {
+			policy.record("add", "http://a", TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		long timeout = policy.getTimeout("add", "http://a");
+		assertTrue("Timeout: " + timeout, timeout >= 18 && timeout <= 25);
+		// the latency is kept per operation and endpoint
+		assertEquals(5000, policy.getTimeout("add", "http://b"));
+		assertEquals(5000, policy.getTimeout("subtract", "http://a"));
+		assertEquals(Long.valueOf(timeout), policy.getTimeouts().get(AdaptiveTimeoutPolicy.getKey("add", "http://a")));
+		
+		policy.setFloor(100);
+		assertEquals(100, policy.getTimeout("add", "http://a"));
+		
+		for (int i = 0; i < 100; i++) {
+			policy.record("add", "http://b", TimeUnit.SECONDS.toNanos(10));
+		}
+		assertEquals(5000, policy.getTimeout("add", "http://b"));
+	}
+	
+	public void testAdaptiveTimeout() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(20);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+			policy.setMinSamples(10);
+			policy.setFloor(50);
+			policy.setFactor(3);
+			policy.setCeiling(10000);
+			service.setAdaptiveTimeoutPolicy(policy);
+			assertEquals(10000, service.getEffectiveTimeout(server.getEndpoint()));
+			for (int i = 0; i < 10; i++) {
+				service.newInstance().execute(null, newInput(service));
+			}
+			long timeout = service.getEffectiveTimeout(server.getEndpoint());
+			assertTrue("Timeout: " + timeout, timeout >= 50 && timeout < 1000);
+			
+			// the upstream slows down, the calls fail at the derived timeout rather than the ceiling
+			server.setLatency(3000);
+			long started = System.currentTimeMillis();
+			try {
+				service.newInstance().executeAsync(null, newInput(service)).get(10, TimeUnit.SECONDS);
+				fail("The call should time out");
+			}
+			catch (ExecutionException e) {
+				assertEquals("SOAP-7", ((ServiceException) e.getCause()).getCode());
+			}
+			assertTrue(System.currentTimeMillis() - started < 2000);
+			
+			// the timeout in the input still wins
+			server.setLatency(300);
+			ComplexContent input = newInput(service);
+			input.set("timeout", 5000l);
+			ComplexContent output = service.newInstance().execute(null, input);
+			assertEquals(11.0, ((Number) output.get("body/AddResponse/result")).doubleValue(), 0.001);
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * Only the http exchange is measured, not the time the call spent waiting for a slot of the concurrency limiter
+	 */
+	public void testQueueing() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(300);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			AdaptiveTimeoutPolicy policy = new AdaptiveTimeoutPolicy();
+			policy.setMinSamples(1);
+			policy.setPercentile(1);
+			policy.setFactor(1);
+			policy.setFloor(1);
+			policy.setCeiling(10000);
+			service.setAdaptiveTimeoutPolicy(policy);
+			ConcurrencyLimitPolicy limits = new ConcurrencyLimitPolicy();
+			limits.setInitialLimit(1);
+			limits.setMaxWait(5000);
+			service.setConcurrencyLimitPolicy(limits);
+			CompletableFuture<ComplexContent> first = service.newInstance().executeAsync(null, newInput(service));
+			CompletableFuture<ComplexContent> second = service.newInstance().executeAsync(null, newInput(service));
+			first.get(10, TimeUnit.SECONDS);
+			second.get(10, TimeUnit.SECONDS);
+			// one of the calls waited for the other, with the queueing included it would be measured at twice the latency
+			long timeout = service.getEffectiveTimeout(server.getEndpoint());
+			assertTrue("Timeout: " + timeout, timeout >= 300 && timeout < 500);
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	private static ComplexContent newInput(WSDLService service) {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/Add/x", 5);
+		input.set("body/Add/y", 6);
+		return input;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestCircuitBreaker extends TestCase {
+
+	private CircuitBreakerPolicy newPolicy() {
+		CircuitBreakerPolicy policy = new CircuitBreakerPolicy();
+		policy.setWindow(10);
+		policy.setMinimumCalls(4);
+		policy.setFailureRateThreshold(0.5);
+		policy.setOpenDuration(50);
+		policy.setHalfOpenProbes(2);
+		return policy;
+	}
+	
+	public void testOpenAndClose() throws InterruptedException {
+		CircuitBreaker breaker = newPolicy().getCircuitBreaker("http://localhost");
+		for (int i = 0; i < 3; i++) {
+			breaker.acquire().onSuccess(0);
+		}
+		breaker.acquire().onFailure(0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.acquire().onFailure(0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.acquire().onFailure(0);
+		// 3 out of 6 failed, reaching the threshold is enough
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertNull(breaker.acquire());
+		assertEquals(1, breaker.getRejected());
+		
+		Thread.sleep(100);
+		// only the probes are let through
+		CircuitBreaker.Permit first = breaker.acquire(), second = breaker.acquire();
+		assertTrue(first.isProbe());
+		assertTrue(second.isProbe());
+		assertNull(breaker.acquire());
+		first.onSuccess(0);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		second.onSuccess(0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+	
+	public void testFailedProbe() throws InterruptedException {
+		CircuitBreakerPolicy policy = newPolicy();
+		policy.setMinimumCalls(1);
+		CircuitBreaker breaker = policy.getCircuitBreaker("http://localhost");
+		breaker.acquire().onFailure(0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Thread.sleep(100);
+		breaker.acquire().onFailure(0);
+		assertNull(breaker.acquire());
+		assertEquals(2, breaker.getOpened());
+	}
+	
+	/**
+	 * Calls that were permitted before the circuit opened do not count as probes
+	 */
+	public void testLateOutcome() throws InterruptedException {
+		CircuitBreakerPolicy policy = newPolicy();
+		policy.setMinimumCalls(1);
+		CircuitBreaker breaker = policy.getCircuitBreaker("http://localhost");
+		CircuitBreaker.Permit late = breaker.acquire();
+		assertFalse(late.isProbe());
+		breaker.acquire().onFailure(0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Thread.sleep(100);
+		CircuitBreaker.Permit probe = breaker.acquire();
+		assertTrue(probe.isProbe());
+		late.onSuccess(0);
+		late.onIgnored();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// the late outcome did not free a probe either
+		assertNotNull(breaker.acquire());
+		assertNull(breaker.acquire());
+		probe.onSuccess(0);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+	
+	public void testSlowCalls() {
+		CircuitBreakerPolicy policy = newPolicy();
+		policy.setSlowCallDuration(10);
+		policy.setSlowCallRateThreshold(0.75);
+		CircuitBreaker breaker = policy.getCircuitBreaker("http://localhost");
+		for (int i = 0; i < 4; i++) {
+			breaker.acquire().onSuccess(20000000);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+	
+	public void testService() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setStatus(503);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			CircuitBreakerPolicy policy = newPolicy();
+			policy.setOpenDuration(60000);
+			service.setCircuitBreakerPolicy(policy);
+			int rejected = 0;
+			for (int i = 0; i < 10; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				try {
+					service.newInstance().execute(null, input);
+					fail("The call should fail");
+				}
+				catch (ServiceException e) {
+					if ("SOAP-4".equals(e.getCode())) {
+						rejected++;
+					}
+					else {
+						assertEquals("SOAP-2", e.getCode());
+					}
+				}
+			}
+			assertEquals(4, server.getRequests());
+			assertEquals(6, rejected);
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
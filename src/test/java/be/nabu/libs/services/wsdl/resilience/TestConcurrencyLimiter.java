@@ -0,0 +1,170 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestConcurrencyLimiter extends TestCase {
+
+	public void testAdjust() throws InterruptedException {
+		ConcurrencyLimitPolicy policy = new ConcurrencyLimitPolicy();
+		policy.setInitialLimit(10);
+		ConcurrencyLimiter limiter = policy.getConcurrencyLimiter("http://localhost");
+		// a fully used limit with a stable latency grows
+		for (int i = 0; i < 100; i++) {
+			for (int j = 0; j < limiter.getLimit(); j++) {
+				assertTrue(limiter.acquire());
+			}
+			for (int j = limiter.getInFlight(); j > 0; j--) {
+				limiter.release(1000000, false);
+			}
+		}
+		int grown = limiter.getLimit();
+		assertTrue("Unexpected limit: " + grown, grown > 10);
+		// latency beyond the tolerance shrinks it
+		assertTrue(limiter.acquire());
+		limiter.release(10000000, false);
+		assertTrue(limiter.getLimit() < grown);
+		// as do dropped calls
+		int shrunk = limiter.getLimit();
+		assertTrue(limiter.acquire());
+		limiter.release(1000000, true);
+		assertTrue(limiter.getLimit() < shrunk);
+		assertEquals(0, limiter.getInFlight());
+	}
+	
+	public void testQueue() throws Exception {
+		ConcurrencyLimitPolicy policy = new ConcurrencyLimitPolicy();
+		policy.setInitialLimit(1);
+		policy.setMaxQueued(1);
+		policy.setMaxWait(5000);
+		final ConcurrencyLimiter limiter = policy.getConcurrencyLimiter("http://localhost");
+		assertTrue(limiter.acquire());
+		CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> {
+			try {
+				return limiter.acquire();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		while (limiter.getQueued() == 0) {
+			Thread.sleep(5);
+		}
+		// the queue is full
+		assertFalse(limiter.acquire());
+		assertEquals(1, limiter.getRejected());
+		limiter.release();
+		assertTrue(queued.get(5, TimeUnit.SECONDS));
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+	}
+	
+	public void testService() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(500);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			ConcurrencyLimitPolicy policy = new ConcurrencyLimitPolicy();
+			policy.setInitialLimit(2);
+			policy.setMaxQueued(0);
+			service.setConcurrencyLimitPolicy(policy);
+			List<CompletableFuture<ComplexContent>> futures = new ArrayList<CompletableFuture<ComplexContent>>();
+			for (int i = 0; i < 6; i++) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("body/Add/x", 5);
+				input.set("body/Add/y", 6);
+				futures.add(service.newInstance().executeAsync(null, input));
+			}
+			int succeeded = 0, rejected = 0;
+			for (CompletableFuture<ComplexContent> future : futures) {
+				try {
+					future.get(10, TimeUnit.SECONDS);
+					succeeded++;
+				}
+				catch (ExecutionException e) {
+					assertEquals("SOAP-5", ((ServiceException) e.getCause()).getCode());
+					rejected++;
+				}
+			}
+			assertEquals(2, succeeded);
+			assertEquals(4, rejected);
+			assertEquals(2, server.getRequests());
+			assertEquals(0, policy.getConcurrencyLimiter(server.getEndpoint()).getInFlight());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * The caller does not queue for a slot beyond its deadline
+	 */
+	public void testDeadline() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setLatency(1500);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			ConcurrencyLimitPolicy policy = new ConcurrencyLimitPolicy();
+			policy.setInitialLimit(1);
+			policy.setMaxWait(5000);
+			service.setConcurrencyLimitPolicy(policy);
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			CompletableFuture<ComplexContent> first = service.newInstance().executeAsync(null, input);
+			ConcurrencyLimiter limiter = policy.getConcurrencyLimiter(server.getEndpoint());
+			while (limiter.getInFlight() == 0) {
+				Thread.sleep(5);
+			}
+			ComplexContent second = service.getServiceInterface().getInputDefinition().newInstance();
+			second.set("body/Add/x", 5);
+			second.set("body/Add/y", 6);
+			second.set("timeout", 200l);
+			long started = System.currentTimeMillis();
+			try {
+				service.newInstance().execute(null, second);
+				fail("The call should time out");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-7", e.getCode());
+			}
+			assertTrue(System.currentTimeMillis() - started < 1000);
+			first.get(10, TimeUnit.SECONDS);
+			assertEquals(1, server.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.balancing.EndpointPool;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestRateLimiter extends TestCase {
+
+	public void testBurst() {
+		TokenBucket bucket = new TokenBucket(1, 5);
+		assertEquals(5, bucket.getAvailable());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, bucket.take(0));
+		}
+		assertEquals(0, bucket.getAvailable());
+		// fail fast
+		assertEquals(-1, bucket.take(0));
+		// the next token is about a second away
+		long wait = bucket.take(2000000000l);
+		assertTrue(wait > 900000000l && wait <= 1000000000l);
+	}
+	
+	public void testWait() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(20, 1);
+		limiter.setMaxWait(1000);
+		long started = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.acquire("http://localhost", null));
+		}
+		// 4 intervals of 50ms
+		assertTrue(System.currentTimeMillis() - started >= 190);
+		assertEquals(4, limiter.getDelayed());
+	}
+	
+	public void testScope() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(1, 1);
+		limiter.setScope(RateLimiter.Scope.USERNAME);
+		assertTrue(limiter.acquire("http://a", "alice"));
+		assertFalse(limiter.acquire("http://b", "alice"));
+		assertTrue(limiter.acquire("http://a", "bob"));
+		limiter.setScope(RateLimiter.Scope.ENDPOINT_AND_USERNAME);
+		assertTrue(limiter.acquire("http://b", "alice"));
+		assertEquals(1, limiter.getRejected());
+	}
+	
+	/**
+	 * Different operations of the same wsdl share the limit
+	 */
+	public void testSharedByOperations() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			RateLimiter limiter = new RateLimiter(0.1, 2);
+			WSDLService add = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			add.setEndpoint(server.getEndpoint());
+			add.setRateLimiter(limiter);
+			WSDLService subtract = TestOperation.newService("example.wsdl", "Subtract", TestOperation.newProvider());
+			subtract.setEndpoint(server.getEndpoint());
+			subtract.setRateLimiter(limiter);
+			add.newInstance().execute(null, newInput(add, "Add"));
+			try {
+				subtract.newInstance().execute(null, newInput(subtract, "Subtract"));
+			}
+			catch (ServiceException e) {
+				// the stub only knows how to answer an add, as long as we got through the limiter
+				assertFalse("SOAP-6".equals(e.getCode()));
+			}
+			try {
+				add.newInstance().execute(null, newInput(add, "Add"));
+				fail("The rate limit should be exceeded");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-6", e.getCode());
+			}
+			assertEquals(2, server.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * A limit per user applies to every endpoint, a call that is rejected is not sent to another endpoint of the pool
+	 */
+	public void testFailover() throws Exception {
+		StubSoapServer first = StubSoapServer.newCalculator("Add", 11), second = StubSoapServer.newCalculator("Add", 11);
+		first.start();
+		second.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpointPool(new EndpointPool(Arrays.asList(first.getEndpoint(), second.getEndpoint())));
+			service.setUsername("alice");
+			RateLimiter limiter = new RateLimiter(0.1, 1);
+			limiter.setScope(RateLimiter.Scope.USERNAME);
+			service.setRateLimiter(limiter);
+			service.newInstance().execute(null, newInput(service, "Add"));
+			try {
+				service.newInstance().execute(null, newInput(service, "Add"));
+				fail("The rate limit should be exceeded");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-6", e.getCode());
+			}
+			assertEquals(1, limiter.getRejected());
+			assertEquals(1, first.getRequests() + second.getRequests());
+			
+			// with a limit per endpoint, the other endpoint still has tokens
+			limiter = new RateLimiter(0.1, 1);
+			service.setRateLimiter(limiter);
+			service.newInstance().execute(null, newInput(service, "Add"));
+			service.newInstance().execute(null, newInput(service, "Add"));
+			assertEquals(3, first.getRequests() + second.getRequests());
+		}
+		finally {
+			first.stop();
+			second.stop();
+		}
+	}
+	
+	/**
+	 * The caller does not wait for a token that would only come after its deadline
+	 */
+	public void testDeadline() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setTimeout(200);
+			RateLimiter limiter = new RateLimiter(0.5, 1);
+			limiter.setMaxWait(5000);
+			service.setRateLimiter(limiter);
+			service.newInstance().execute(null, newInput(service, "Add"));
+			long started = System.currentTimeMillis();
+			try {
+				service.newInstance().execute(null, newInput(service, "Add"));
+				fail("The rate limit should be exceeded");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-6", e.getCode());
+			}
+			assertTrue(System.currentTimeMillis() - started < 1000);
+			assertEquals(1, server.getRequests());
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	private static ComplexContent newInput(WSDLService service, String operation) {
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/" + operation + "/x", 5);
+		input.set("body/" + operation + "/y", 6);
+		return input;
+	}
+}
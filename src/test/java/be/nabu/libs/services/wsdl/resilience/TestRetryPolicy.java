@@ -0,0 +1,138 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.resilience;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.wsdl.StubSoapServer;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class TestRetryPolicy extends TestCase {
+
+	public void testFaultCode() {
+		assertEquals("Server", RetryPolicy.getFaultCode("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><soap:Fault>"
+			+ "<faultcode>soap:Server</faultcode><faultstring>Busy</faultstring></soap:Fault></soap:Body></soap:Envelope>"));
+		assertEquals("Receiver", RetryPolicy.getFaultCode("<env:Fault><env:Code>\n\t<env:Value>env:Receiver</env:Value></env:Code></env:Fault>"));
+		assertNull(RetryPolicy.getFaultCode("<html>Service Unavailable</html>"));
+	}
+	
+	public void testBackoff() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setInitialBackoff(100);
+		policy.setMaxBackoff(300);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(policy.getBackoff(1) <= 100);
+			assertTrue(policy.getBackoff(5) <= 300);
+		}
+		assertFalse(policy.isRetryable(policy.getMaxAttempts(), 503, null, null));
+		assertTrue(policy.isRetryable(1, 503, null, null));
+		assertFalse(policy.isRetryable(1, 500, null, null));
+	}
+	
+	public void testRetry() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setStatus(500);
+		server.setResponse("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><soap:Fault>"
+			+ "<faultcode>soap:Server</faultcode><faultstring>Busy</faultstring></soap:Fault></soap:Body></soap:Envelope>");
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			RetryPolicy policy = new RetryPolicy();
+			policy.setInitialBackoff(10);
+			policy.setRetryableFaultCodes(new HashSet<String>(Arrays.asList("Server")));
+			service.setRetryPolicy(policy);
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			try {
+				service.newInstance().execute(null, input);
+				fail("The call should fail");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-2", e.getCode());
+			}
+			assertEquals(3, server.getRequests());
+			try {
+				service.newInstance().executeAsync(null, input).get(10, TimeUnit.SECONDS);
+				fail("The call should fail");
+			}
+			catch (ExecutionException e) {
+				assertEquals("SOAP-2", ((ServiceException) e.getCause()).getCode());
+			}
+			assertEquals(6, server.getRequests());
+			assertEquals(4, policy.getRetries());
+			
+			// once the fault is gone, the retry succeeds
+			server.setStatus(200);
+			server.setResponse("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>"
+				+ "<ns:AddResponse xmlns:ns=\"http://example.org/math/types/\"><result>11</result></ns:AddResponse></soap:Body></soap:Envelope>");
+			assertNotNull(service.newInstance().execute(null, input).get("body/AddResponse/result"));
+		}
+		finally {
+			server.stop();
+		}
+	}
+	
+	/**
+	 * A backoff that runs into the deadline ends the call with a timeout instead of another attempt
+	 */
+	public void testDeadline() throws Exception {
+		StubSoapServer server = StubSoapServer.newCalculator("Add", 11);
+		server.setStatus(503);
+		server.start();
+		try {
+			WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+			service.setEndpoint(server.getEndpoint());
+			service.setTimeout(300);
+			RetryPolicy policy = new RetryPolicy();
+			policy.setInitialBackoff(100000);
+			policy.setMaxBackoff(100000);
+			service.setRetryPolicy(policy);
+			ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+			input.set("body/Add/x", 5);
+			input.set("body/Add/y", 6);
+			long started = System.currentTimeMillis();
+			try {
+				service.newInstance().execute(null, input);
+				fail("The call should time out");
+			}
+			catch (ServiceException e) {
+				assertEquals("SOAP-7", e.getCode());
+			}
+			try {
+				service.newInstance().executeAsync(null, input).get(10, TimeUnit.SECONDS);
+				fail("The call should time out");
+			}
+			catch (ExecutionException e) {
+				assertEquals("SOAP-7", ((ServiceException) e.getCause()).getCode());
+			}
+			assertTrue(System.currentTimeMillis() - started < 3000);
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.ws;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.api.WSSecurityType;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.structure.Structure;
+import be.nabu.libs.wsdl.api.BindingOperation;
+import be.nabu.libs.wsdl.parser.WSDLParser;
+
+/**
+ * Measures generating the security header, with multiple threads to show any contention on the random that generates the nonces.
+ * The benchmark only uses api that already existed in the first release, to compare with an older version run the same class in a checkout of that version:
+ * git worktree add ../services-wsdl-baseline <commit>, copy this class and the jmh profile of the pom into it and run it there as well.
+ * Run with the jmh profile: mvn -Pjmh -Djmh.benchmarks=BenchmarkWSSecurityJmh test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BenchmarkWSSecurityJmh {
+
+	@Param({ "PasswordText", "PasswordDigest" })
+	public String type;
+	
+	private WSDLService service;
+	private WSSecurity security;
+	private Structure envelope;
+	
+	@Setup
+	public void setup() throws Exception {
+		WSDLParser parser = new WSDLParser(Thread.currentThread().getContextClassLoader().getResourceAsStream("example.wsdl"), false);
+		for (BindingOperation operation : parser.getDefinition().getBindings().get(0).getOperations()) {
+			if (operation.getName().equals("Add")) {
+				service = new WSDLService(operation.getName(), operation, null, Charset.forName("UTF-8"));
+			}
+		}
+		service.setUsername("user");
+		service.setPassword("secret");
+		security = new WSSecurity();
+		security.setWsSecurityType(WSSecurityType.valueOf(type));
+		security.setTimestampDuration(60000l);
+		// only the header matters, the extension adds its definition to it
+		envelope = new Structure();
+		envelope.setName("Envelope");
+		Structure header = new Structure();
+		header.setName("Header");
+		envelope.add(new ComplexElementImpl("Header", header, envelope));
+		security.addDefinition(service, envelope);
+	}
+	
+	@Benchmark
+	public ComplexContent addInstance() {
+		ComplexContent instance = envelope.newInstance();
+		security.addInstance(service, instance, null);
+		return instance;
+	}
+}
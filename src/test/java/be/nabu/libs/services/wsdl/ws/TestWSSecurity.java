@@ -0,0 +1,152 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.services.wsdl.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.property.api.Property;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.services.wsdl.EnvelopeTemplate;
+import be.nabu.libs.services.wsdl.TestOperation;
+import be.nabu.libs.services.wsdl.WSDLService;
+import be.nabu.libs.services.wsdl.api.WSExtension;
+import be.nabu.libs.services.wsdl.api.WSSecurityType;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.ModifiableComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.properties.TimezoneProperty;
+import be.nabu.libs.types.structure.Structure;
+
+public class TestWSSecurity extends TestCase {
+
+	public void testPasswordDigest() throws Exception {
+		WSSecurity security = new WSSecurity();
+		security.setWsSecurityType(WSSecurityType.PasswordDigest);
+		security.setTimestampDuration(60000l);
+		WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+		service.setExtensions(Arrays.<WSExtension>asList(security));
+		service.setUsername("user");
+		service.setPassword("secret");
+		
+		ComplexContent envelope = service.getRequestEnvelope().newInstance();
+		security.addInstance(service, envelope, null);
+		
+		byte [] nonce = Base64.getDecoder().decode((String) envelope.get("Header/Security/UsernameToken/Nonce/$value"));
+		assertEquals(16, nonce.length);
+		String created = (String) envelope.get("Header/Security/UsernameToken/Created");
+		OffsetDateTime.parse(created);
+		assertTrue(OffsetDateTime.parse((String) envelope.get("Header/Security/Timestamp/Expires")).isAfter(OffsetDateTime.parse(created)));
+		
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(nonce);
+		digest.update(created.getBytes(StandardCharsets.UTF_8));
+		digest.update("secret".getBytes(StandardCharsets.UTF_8));
+		assertEquals(Base64.getEncoder().encodeToString(digest.digest()), envelope.get("Header/Security/UsernameToken/Password/$value"));
+		
+		// every request gets a new nonce and ids
+		ComplexContent other = service.getRequestEnvelope().newInstance();
+		security.addInstance(service, other, null);
+		assertFalse(envelope.get("Header/Security/UsernameToken/Nonce/$value").equals(other.get("Header/Security/UsernameToken/Nonce/$value")));
+		assertFalse(envelope.get("Header/Security/UsernameToken/@Id").equals(other.get("Header/Security/UsernameToken/@Id")));
+	}
+	
+	/**
+	 * The security header is written directly so the prerendered envelope can still be used
+	 */
+	public void testPrerendered() throws Exception {
+		WSSecurity security = new WSSecurity();
+		security.setWsSecurityType(WSSecurityType.PasswordDigest);
+		WSDLService service = TestOperation.newService("example.wsdl", "Add", TestOperation.newProvider());
+		service.setExtensions(Arrays.<WSExtension>asList(security));
+		service.setUsername("user<1>");
+		service.setPassword("secret");
+		EnvelopeTemplate template = service.getEnvelopeTemplate();
+		assertNotNull(template);
+		
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("body/Add/x", 5);
+		input.set("body/Add/y", 6);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		template.write(input, output, StandardCharsets.UTF_8);
+		byte [] bytes = output.toByteArray();
+		
+		XMLBinding binding = new XMLBinding(service.getRequestEnvelope(), StandardCharsets.UTF_8);
+		ComplexContent envelope = binding.unmarshal(new ByteArrayInputStream(bytes), new Window[0]);
+		assertEquals("user<1>", envelope.get("Header/Security/UsernameToken/Username"));
+		assertNotNull(envelope.get("Body/Add/x"));
+		
+		byte [] nonce = Base64.getDecoder().decode((String) envelope.get("Header/Security/UsernameToken/Nonce/$value"));
+		String created = (String) envelope.get("Header/Security/UsernameToken/Created");
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update(nonce);
+		digest.update(created.getBytes(StandardCharsets.UTF_8));
+		digest.update("secret".getBytes(StandardCharsets.UTF_8));
+		assertEquals(Base64.getEncoder().encodeToString(digest.digest()), envelope.get("Header/Security/UsernameToken/Password/$value"));
+		
+		// extensions that are not compiled still disable the template
+		service.setExtensions(Arrays.<WSExtension>asList(new WSExtension() {
+			@Override
+			public void addDefinition(WSDLService service, ModifiableComplexType envelope, Value<?>...values) {
+				// no header
+			}
+			@Override
+			public void addInstance(WSDLService service, ComplexContent envelope, ComplexContent serviceInput, Value<?>...values) {
+				// no header
+			}
+			@Override
+			public Map<String, String> getPreferredPrefixes() {
+				return new HashMap<String, String>();
+			}
+			@Override
+			public List<Property<?>> getSupportedProperties() {
+				return new ArrayList<Property<?>>();
+			}
+		}));
+		assertNull(service.getEnvelopeTemplate());
+	}
+	
+	/**
+	 * The definition with typed timestamps is still available for those that marshal dates themselves
+	 */
+	public void testTypedDefinition() {
+		TimeZone timezone = TimeZone.getTimeZone("Europe/Brussels");
+		Structure definition = WSSecurity.newDefinition("http://schemas.xmlsoap.org/soap/envelope/", timezone);
+		Element<?> created = definition.get("UsernameToken/Created");
+		assertEquals(Date.class, ((SimpleType<?>) created.getType()).getInstanceClass());
+		assertEquals(timezone, ValueUtils.getValue(TimezoneProperty.getInstance(), created.getProperties()));
+		assertEquals(Date.class, ((SimpleType<?>) definition.get("Timestamp/Expires").getType()).getInstanceClass());
+		assertEquals(String.class, ((SimpleType<?>) WSSecurity.newDefinition("http://schemas.xmlsoap.org/soap/envelope/").get("UsernameToken/Created").getType()).getInstanceClass());
+	}
+}